@@ -0,0 +1,140 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+
+/**
+ * The JavaScript inputs of the benchmarks.
+ *
+ *   small    : A typical hand written file, a constructor with a few methods and variables
+ *   bundle   : About 10 MB of concatenated modules, like a built bundle
+ *   deep     : Object literals nested 200 levels deep
+ *   comments : A file that's mostly doc comments and line comments
+ *   real     : A real file, JWalk's own doctool/parsers/default.js or the file in -Djwalk.bench.real
+ *
+ * The synthetic files are generated the first time they're needed, in a temporary directory.
+ */
+public class BenchCorpus {
+
+	public static final String[] INPUTS = { "small", "bundle", "deep", "comments", "real" };
+
+	private static final int BUNDLE_SIZE = 10 * 1024 * 1024;
+	private static final int DEEP_LEVELS = 200;
+
+	private static File dir = null;
+	private static HashMap<String, File> files = new HashMap<String, File>();
+
+	/**
+	 * Get the file for an input
+	 * @param input One of the INPUTS
+	 */
+	public static synchronized File get(String input) throws IOException {
+		File file = files.get(input);
+		if( file != null ){
+			return file;
+		}
+
+		if( input.equals("real") ){
+			String home = System.getProperty("jwalk.home", ".");
+			file = new File(System.getProperty("jwalk.bench.real", new File(home, "doctool/parsers/default.js").getPath()));
+			if( !file.exists() ){
+				throw new IOException("The real world input '"+ file.getPath() +"' does not exist, set it with -Djwalk.bench.real=file");
+			}
+		}
+		else {
+			StringBuilder js = new StringBuilder();
+			if( input.equals("small") ){
+				module(js, 0);
+			} else if( input.equals("bundle") ){
+				for( int i = 0; js.length() < BUNDLE_SIZE; i++ ){
+					module(js, i);
+				}
+			} else if( input.equals("deep") ){
+				deep(js);
+			} else if( input.equals("comments") ){
+				comments(js);
+			} else {
+				throw new IOException("Unknown benchmark input '"+ input +"'");
+			}
+			file = write(input, js);
+		}
+
+		files.put(input, file);
+		return file;
+	}
+
+	/**
+	 * A documented constructor, its prototype and an object literal
+	 */
+	private static void module(StringBuilder js, int n){
+		js.append("/**\n * A widget, number ").append(n).append("\n * @constructor\n * @param {String} name The name\n */\n");
+		js.append("function Widget").append(n).append("(name, size){\n");
+		js.append("\tthis.name = name;\n\tthis.size = size || ").append(n).append(";\n\tvar hidden = 'private';\n}\n\n");
+		js.append("/**\n * Get the area\n * @return {Number}\n */\n");
+		js.append("Widget").append(n).append(".prototype.area = function(){\n\treturn this.size * this.size;\n};\n\n");
+		js.append("Widget").append(n).append(".prototype.rename = function(name){\n\tthis.name = name; // keep the old one?\n\treturn this;\n};\n\n");
+		js.append("var Config").append(n).append(" = {\n");
+		js.append("\tenabled : true,\n\tlabel : \"config ").append(n).append("\",\n\tpattern : /^w[0-9]+$/,\n");
+		js.append("\tdefaults : { width : 10, height : 20 },\n");
+		js.append("\tinit : function(){ return new Widget").append(n).append("(this.label); }\n};\n\n");
+		js.append("var count").append(n).append(" = 0, total").append(n).append(" = ").append(n).append(";\n\n");
+	}
+
+	/**
+	 * Object literals nested inside each other
+	 */
+	private static void deep(StringBuilder js){
+		js.append("/** The root of a deep tree */\nvar Tree = ");
+		for( int i = 0; i < DEEP_LEVELS; i++ ){
+			js.append("{\n\tname : \"level").append(i).append("\",\n\tdepth : ").append(i).append(",\n");
+			js.append("\tvisit : function(){ return ").append(i).append("; },\n\tchild : ");
+		}
+		js.append("null");
+		for( int i = 0; i < DEEP_LEVELS; i++ ){
+			js.append("\n}");
+		}
+		js.append(";\n");
+	}
+
+	/**
+	 * Functions with long doc comments and line comments around them
+	 */
+	private static void comments(StringBuilder js){
+		for( int i = 0; i < 500; i++ ){
+			js.append("/**\n * Function number ").append(i).append(".\n *\n");
+			for( int n = 0; n < 8; n++ ){
+				js.append(" * Some more about what it does, line ").append(n).append(".\n");
+			}
+			js.append(" * @param {Number} a The first number\n * @param {Number} b The second number\n * @return {Number} The sum\n */\n");
+			js.append("function add").append(i).append("(a, b){\n");
+			js.append("\t// Add them up\n\tvar sum = a + b; // the sum\n\t/* and return it */\n\treturn sum;\n}\n\n");
+			js.append("// ").append(i).append(" done\n\n");
+		}
+	}
+
+	/**
+	 * Save a generated input to the temporary directory
+	 */
+	private static File write(String input, StringBuilder js) throws IOException {
+		if( dir == null ){
+			dir = File.createTempFile("jwalk-bench", "");
+			dir.delete();
+			dir.mkdirs();
+			dir.deleteOnExit();
+		}
+
+		File file = new File(dir, input +".js");
+		file.deleteOnExit();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), ScriptFile.DEFAULT_CHARSET);
+		try {
+			out.write(js.toString());
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
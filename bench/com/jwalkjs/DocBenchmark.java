@@ -0,0 +1,176 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks the documentation stages of a parsed file, each on its own:
+ * creating the ElementDoc objects, running the default.js comment parser or its native version
+ * on every element, and rendering the file's page with the default template set.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DocBenchmark {
+
+	@Param({ "small", "bundle", "deep", "comments", "real" })
+	public String input;
+
+	private Context cx;
+	private ScriptableObject scope;
+	private ScriptFile script;
+	private Element[] elements;
+	private ElementDoc[] docs;
+	private Scriptable commentParserObj;
+	private Function commentParserFunc;
+	private Function commentParserFileFunc;
+	private NativeDocParser nativeParser;
+	private Template templates;
+	private File fileTemplate;
+	private HashMap<String, Object> globals;
+
+	/**
+	 * Throws away the rendered pages
+	 */
+	private static final OutputStream NOWHERE = new OutputStream(){
+		public void write(int b){ }
+		public void write(byte[] b, int off, int len){ }
+	};
+
+	@Setup
+	public void setUp() throws IOException {
+		File home = new File(System.getProperty("jwalk.home", "."));
+		File doctoolDir = new File(home, "doctool");
+
+		script = new JWalkParser().parse(BenchCorpus.get(input), true);
+		elements = script.root.getAllChildren();
+
+		// The comment parser, loaded like DocTool does
+		cx = new ContextFactory().enterContext();
+		scope = cx.initStandardObjects();
+		JSHelpers.load(scope);
+		File parser = new File(doctoolDir, "parsers/default.js");
+		FileReader reader = new FileReader(parser);
+		try {
+			cx.evaluateReader(scope, reader, parser.getAbsolutePath(), 1, null);
+		} finally {
+			reader.close();
+		}
+		commentParserObj = (Scriptable)scope.get("DocParser", scope);
+		commentParserFunc = (Function)ScriptableObject.getProperty(commentParserObj, "parseElement");
+		commentParserFileFunc = (Function)ScriptableObject.getProperty(commentParserObj, "parseFile");
+		nativeParser = new NativeDocParser(cx, scope);
+
+		// Documented elements, for the comment parser and templates
+		script.global = script.root.generateDocElement(cx, scope);
+		docs = new ElementDoc[elements.length];
+		for( int i = 0; i < elements.length; i++ ){
+			docs[i] = elements[i].generateDocElement(cx, scope);
+			commentParserFunc.call(cx, scope, commentParserObj, new Object[]{ docs[i], elements[i] });
+		}
+		script.global.freeze();
+		for( int i = 0; i < docs.length; i++ ){
+			docs[i].freeze();
+		}
+
+		// The file page of the default template set, with the globals templates.js gives it
+		File templateSet = new File(doctoolDir, "templates/default");
+		templates = new Template(templateSet);
+		fileTemplate = new File(templateSet, "each_file.tmpl");
+		globals = new HashMap<String, Object>();
+		globals.put("file", script);
+		globals.put("doc", script.global);
+		globals.put("objects", script.global.getChildren(ElementDoc.OBJECT));
+		globals.put("variables", script.global.getChildren(ElementDoc.VARIABLE));
+		globals.put("functions", script.global.getChildren(ElementDoc.FUNCTION));
+	}
+
+	@TearDown
+	public void tearDown(){
+		templates.close();
+		Context.exit();
+	}
+
+	/**
+	 * Creating the ElementDoc of every element, with their type and param objects
+	 */
+	@Benchmark
+	public void elementDocs(Blackhole hole){
+		for( int i = 0; i < elements.length; i++ ){
+			hole.consume( new ElementDoc(cx, scope, elements[i]) );
+		}
+	}
+
+	/**
+	 * Running the default.js comment parser on every element.
+	 * The parser changes the line of documented elements, so it's set back first, or they'd be skipped.
+	 */
+	@Benchmark
+	public void commentParser(Blackhole hole){
+		for( int i = 0; i < elements.length; i++ ){
+			docs[i].lineno = elements[i].lineno;
+			hole.consume( commentParserFunc.call(cx, scope, commentParserObj, new Object[]{ docs[i], elements[i] }) );
+		}
+	}
+
+	/**
+	 * Running the default.js comment parser on the whole file, with one call to parseFile
+	 */
+	@Benchmark
+	public Object commentParserFile(){
+		Object[] jsDocs = new Object[docs.length];
+		Object[] jsElements = new Object[elements.length];
+		for( int i = 0; i < elements.length; i++ ){
+			docs[i].lineno = elements[i].lineno;
+			jsDocs[i] = Context.javaToJS(docs[i], scope);
+			jsElements[i] = Context.javaToJS(elements[i], scope);
+		}
+		return commentParserFileFunc.call(cx, scope, commentParserObj,
+				new Object[]{ cx.newArray(scope, jsDocs), cx.newArray(scope, jsElements) });
+	}
+
+	/**
+	 * Running the native version of default.js on every element
+	 */
+	@Benchmark
+	public void nativeCommentParser(){
+		for( int i = 0; i < elements.length; i++ ){
+			docs[i].lineno = elements[i].lineno;
+			nativeParser.parseElement(docs[i], elements[i]);
+		}
+	}
+
+	/**
+	 * Rendering the file's page, without writing it anywhere
+	 */
+	@Benchmark
+	public void renderTemplate() throws IOException {
+		templates.parse(fileTemplate, NOWHERE, globals);
+	}
+}
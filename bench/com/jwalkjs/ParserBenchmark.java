@@ -0,0 +1,99 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptOrFnNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the stages of parsing a file, each on its own:
+ * Rhino's parser, building the element tree (readTree) and attaching the comments (readComments),
+ * and then the whole JWalkParser.parse() of a file, which also reads it from disk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+	@Param({ "small", "bundle", "deep", "comments", "real" })
+	public String input;
+
+	private File file;
+	private ScriptFile script;
+	private JWalkParser session;
+	private ScriptOrFnNode root;
+	private int[] ranges;
+	private Element global;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = BenchCorpus.get(input);
+		script = new ScriptFile(file);
+		session = new JWalkParser();
+
+		// The output of each stage, for the next one
+		Parser parser = session.createParser(true);
+		root = parser.parse(script.source, file.getPath(), 1);
+		ranges = parser.getCommentRanges();
+		global = session.buildTree(root, script);
+	}
+
+	/**
+	 * Rhino's parser
+	 */
+	@Benchmark
+	public ScriptOrFnNode rhinoParse(){
+		return session.createParser(false).parse(script.source, file.getPath(), 1);
+	}
+
+	/**
+	 * Rhino's parser, keeping where the comments are
+	 */
+	@Benchmark
+	public int[] rhinoParseWithComments(){
+		Parser parser = session.createParser(true);
+		parser.parse(script.source, file.getPath(), 1);
+		return parser.getCommentRanges();
+	}
+
+	/**
+	 * Building the element tree from the parse tree
+	 */
+	@Benchmark
+	public Element readTree(){
+		return session.buildTree(root, script);
+	}
+
+	/**
+	 * Creating the comments and attaching them to the elements
+	 */
+	@Benchmark
+	public ArrayList<Comment> readComments(){
+		return session.buildComments(global, ranges, script.source);
+	}
+
+	/**
+	 * Reading and parsing the file, with comments
+	 */
+	@Benchmark
+	public ScriptFile parseFile() throws IOException {
+		return session.parse(file, true);
+	}
+}
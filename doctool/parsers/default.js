@@ -26,6 +26,18 @@ var DefaultParser = {
 		}
 	},
 
+	/**
+	 * Parses all the JavaScript elements of a file in one call.
+	 * This is optional, without it parseElement is called for each element.
+	 * @param {Array} docs The objects used to collect the documentable information, one for each element.
+	 * @param {Array} elements The JavaScript elements of the file, in the same order as the docs.
+	 */
+	parseFile : function(docs, elements){
+		for( var i = 0, len = elements.length; i < len; i++ ){
+			this.parseElement(docs[i], elements[i]);
+		}
+	},
+
 	/**
 	 * Parses the comment block for tags, links and formatting.
 	 * This is called by {#parseElement}
@@ -0,0 +1,703 @@
+package com.jwalkjs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeJavaArray;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Undefined;
+import org.mozilla.javascript.Wrapper;
+
+/**
+ * A persistent cache that makes repeated doc runs incremental.
+ *
+ * The element tree and comments of each parsed file are saved to the cache directory,
+ * keyed by the file's path, size, modified time and content hash. When the file hasn't
+ * changed the next run loads the tree from the cache instead of parsing the file again.
+ *
+ * The cache also remembers a fingerprint of the inputs of every page the templates render.
+ * A page is only rendered again when its fingerprint changes, or when the comment parser
+ * or the template set has changed (the "stamp").
+ *
+ * The fingerprint only covers the variables passed to the template.  If the dispatch script
+ * passes the symbol index ('symbols'), its version is part of the fingerprint, so those pages
+ * are rendered again whenever a symbol of any file changes.  Anything else a template reads
+ * on its own, like a file it opens itself, isn't seen by the cache; use '--no-cache' then.
+ */
+public class DocCache {
+
+	private static final int MAGIC = 0x4A574C4B; // "JWLK"
+	private static final int FORMAT_VERSION = 2;
+
+	// Element kinds in the cache file
+	private static final byte KIND_ELEMENT = 0;
+	private static final byte KIND_PARAM = 1;
+
+	// Element flags
+	private static final int FLAG_PRIVATE 			= 0x01;
+	private static final int FLAG_READ_ONLY 		= 0x02;
+	private static final int FLAG_WRITE_ONLY 		= 0x04;
+	private static final int FLAG_IMPLICIT_GLOBAL	= 0x08;
+	private static final int FLAG_CONSTRUCTOR 		= 0x10;
+	private static final int FLAG_ANONYMOUS 		= 0x20;
+	private static final int FLAG_IMPLICIT_OBJ 		= 0x40;
+
+	// A file modified this close to when it was cached could change again without a new modified time
+	private static final long RACY_MILLIS = 2000;
+
+	// How deep to look into template variables for the page fingerprint
+	private static final int MAX_FINGERPRINT_DEPTH = 8;
+
+	private File dir;
+	private File filesDir;
+	private File pagesFile;
+
+	private String stamp = "";
+	private Hashtable<String,String> pages = new Hashtable<String,String>();
+	private Hashtable<String,Boolean> usedPages = new Hashtable<String,Boolean>();
+
+	/**
+	 * Open a cache directory.  It will be created if it doesn't exist.
+	 * @param dir The cache directory
+	 */
+	public DocCache(File dir) throws IOException {
+		this.dir = dir;
+		this.filesDir = new File(dir, "files");
+		this.pagesFile = new File(dir, "pages.idx");
+
+		if( !filesDir.exists() && !filesDir.mkdirs() ){
+			throw new IOException("Could not create the cache directory '"+ filesDir.getPath() +"'");
+		}
+
+		loadPages();
+	}
+
+	/**
+	 * Set the stamp that identifies the comment parser and templates used for this run.
+	 * If it's different from the stamp of the last run, every page will be rendered again.
+	 * @param stamp
+	 */
+	public void setStamp(String stamp){
+		if( !stamp.equals(this.stamp) ){
+			pages.clear();
+		}
+		this.stamp = stamp;
+	}
+
+	/**
+	 * Load the element tree for the script file from the cache.
+	 * This also sets the comments on the script file.
+	 *
+	 * If the file has the same path, size and modified time as when it was cached, it's loaded
+	 * without reading the source.  Otherwise the hash of the source decides, so the source has
+	 * to be read, and a file that was only touched is still loaded from the cache.
+	 * @param script The script file, with or without its source (see ScriptFile.unread())
+	 * @param incComments If the comments should be included
+	 * @return The global element of the file or NULL if it's not in the cache or has changed,
+	 * 			or the source is needed to tell and hasn't been read
+	 */
+	public Element load(ScriptFile script, boolean incComments){
+		File file = script.getFile();
+		File entry = entryFor(file);
+		if( !entry.exists() ){
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(entry) ) );
+			try {
+
+				// Compare key
+				if( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ){
+					return null;
+				}
+				String path = readString(in);
+				long size = in.readLong();
+				long modified = in.readLong();
+				String hash = readString(in);
+				boolean hasComments = in.readBoolean();
+
+				if( !file.getCanonicalPath().equals(path)
+						|| size != script.getLength()
+						|| hasComments != incComments ){
+					return null;
+				}
+
+				// Unchanged, unless it could have changed within the same tick of the clock it was cached in
+				if( modified == script.getModified() && entry.lastModified() - modified >= RACY_MILLIS ){
+					script.setHash(hash);
+				}
+				else if( script.source == null || !script.getHash().equals(hash) ){
+					return null;
+				}
+
+				return readModel(in, script, hasComments);
+			} finally {
+				in.close();
+			}
+		} catch( IOException ex ){
+			return null;
+		} catch( RuntimeException ex ){ // corrupt entry
+			return null;
+		}
+	}
+
+	/**
+	 * Save the element tree and comments of a parsed script file to the cache.
+	 * Errors are ignored, the file will simply be parsed again next time.
+	 * @param script The parsed script file
+	 * @param incComments If the comments were included
+	 */
+	public void store(ScriptFile script, boolean incComments){
+		File file = script.getFile();
+		File entry = entryFor(file);
+		File temp = new File(entry.getPath() +"."+ Thread.currentThread().getId() +".tmp");
+
+		try {
+			DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(temp) ) );
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				writeString(out, file.getCanonicalPath());
+				out.writeLong(script.getLength());
+				out.writeLong(script.getModified());
+				writeString(out, script.getHash());
+				out.writeBoolean(incComments && script.comments != null);
+
+				writeModel(out, script);
+			} finally {
+				out.close();
+			}
+
+			entry.delete();
+			if( !temp.renameTo(entry) ){
+				temp.delete();
+			}
+		} catch( IOException ex ){
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Check if a page has already been rendered with the same inputs
+	 * @param out The output file
+	 * @param fingerprint The fingerprint of the page inputs (see fingerprint())
+	 */
+	public boolean isPageCurrent(File out, String fingerprint){
+		String last = pages.get(pageKey(out));
+		if( last != null && last.equals(fingerprint) && out.exists() ){
+			usedPages.put(pageKey(out), Boolean.TRUE);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forget the fingerprint for a page, before it's rendered again
+	 * @param out The output file
+	 */
+	public void removePage(File out){
+		pages.remove(pageKey(out));
+	}
+
+	/**
+	 * Remember the fingerprint of a page that has just been rendered
+	 * @param out The output file
+	 * @param fingerprint The fingerprint of the page inputs (see fingerprint())
+	 */
+	public void pageRendered(File out, String fingerprint){
+		pages.put(pageKey(out), fingerprint);
+		usedPages.put(pageKey(out), Boolean.TRUE);
+	}
+
+	/**
+	 * Get the key of a page, its path from the output directory the cache is in,
+	 * so it's the same whichever directory the command runs in.
+	 * @param out The output file
+	 */
+	private String pageKey(File out){
+		String path = out.getAbsolutePath();
+		String root = dir.getAbsoluteFile().getParent() + File.separator;
+		if( path.startsWith(root) ){
+			return path.substring(root.length());
+		}
+		return path;
+	}
+
+	/**
+	 * Get the output file of a page key, the reverse of pageKey()
+	 */
+	private File pageFile(String key){
+		File file = new File(key);
+		if( !file.isAbsolute() ){
+			file = new File(dir.getAbsoluteFile().getParentFile(), key);
+		}
+		return file;
+	}
+
+	/**
+	 * Delete the pages that weren't rendered or found current since the last call,
+	 * like the pages of source files that have been removed.
+	 * Only call this after all the templates have been run successfully.
+	 * @return The number of pages deleted
+	 */
+	public int removeUnusedPages(){
+		int removed = 0;
+		Object[] paths = pages.keySet().toArray();
+		for( int i = 0; i < paths.length; i++ ){
+			if( !usedPages.containsKey(paths[i]) ){
+				pages.remove(paths[i]);
+				pageFile((String)paths[i]).delete();
+				removed++;
+			}
+		}
+		usedPages.clear();
+		return removed;
+	}
+
+	/**
+	 * Save the page fingerprints
+	 */
+	public void save() throws IOException {
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(pagesFile) ) );
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			writeString(out, stamp);
+
+			Map<String,String> snapshot = new Hashtable<String,String>(pages);
+			out.writeInt(snapshot.size());
+			Iterator<Map.Entry<String,String>> iter = snapshot.entrySet().iterator();
+			while( iter.hasNext() ){
+				Map.Entry<String,String> page = iter.next();
+				writeString(out, page.getKey());
+				writeString(out, page.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Create a fingerprint of the inputs to a template
+	 * Script files and elements are identified by their path and content hash, the symbol index by
+	 * its version, and everything else by value.
+	 * @param template The template name
+	 * @param globals The variables passed to the template
+	 */
+	public static String fingerprint(String template, Map<String, Object> globals){
+		StringBuilder print = new StringBuilder();
+		print.append(template);
+
+		if( globals != null ){
+			String[] keys = globals.keySet().toArray(new String[globals.size()]);
+			Arrays.sort(keys);
+			for(int i = 0; i < keys.length; i++){
+				print.append('\n').append(keys[i]).append('=');
+				fingerprint(print, globals.get(keys[i]), 0);
+			}
+		}
+
+		return ScriptFile.hash(print.toString());
+	}
+
+	/**
+	 * Add a template variable to a fingerprint
+	 */
+	private static void fingerprint(StringBuilder print, Object value, int depth){
+		if( depth > MAX_FINGERPRINT_DEPTH ){
+			print.append("...");
+			return;
+		}
+
+		if( value instanceof NativeJavaArray ){
+			value = ((Wrapper)value).unwrap();
+		}
+		else if( value instanceof Wrapper ){
+			value = ((Wrapper)value).unwrap();
+		}
+
+		if( value == null || value instanceof Undefined ){
+			print.append("null");
+		}
+		else if( value instanceof ScriptFile ){
+			ScriptFile script = (ScriptFile)value;
+			print.append("F(").append(script.path).append(':').append(script.getHash()).append(')');
+		}
+		else if( value instanceof ElementDoc ){
+			fingerprint(print, ((ElementDoc)value).element, depth);
+		}
+		else if( value instanceof Element ){
+			Element elem = (Element)value;
+			print.append("E(").append(elem.name).append(':').append(elem.start);
+			if( elem.script != null ){
+				print.append(':').append(elem.script.path).append(':').append(elem.script.getHash());
+			}
+			print.append(')');
+		}
+		else if( value instanceof SymbolIndex ){
+			print.append("S(").append(((SymbolIndex)value).getVersion()).append(')');
+		}
+		else if( value instanceof SymbolIndex.Symbol ){
+			SymbolIndex.Symbol symbol = (SymbolIndex.Symbol)value;
+			print.append("Y(").append(symbol.name).append(':').append(symbol.script.path).append(':').append(symbol.lineno)
+				.append(':').append(symbol.type).append(':').append(symbol.implicit).append(')');
+		}
+		else if( value instanceof Object[] ){
+			Object[] list = (Object[])value;
+			print.append('[');
+			for(int i = 0; i < list.length; i++){
+				fingerprint(print, list[i], depth + 1);
+				print.append(',');
+			}
+			print.append(']');
+		}
+		else if( value instanceof Function ){
+			print.append("function");
+		}
+		else if( value instanceof Scriptable ){
+			Scriptable obj = (Scriptable)value;
+			Object[] ids = obj.getIds();
+			print.append('{');
+			Object property;
+			for(int i = 0; i < ids.length; i++){
+				if( ids[i] instanceof Integer ){
+					property = ScriptableObject.getProperty(obj, ((Integer)ids[i]).intValue());
+				} else {
+					property = ScriptableObject.getProperty(obj, ids[i].toString());
+				}
+				print.append(ids[i]).append(':');
+				fingerprint(print, property, depth + 1);
+				print.append(',');
+			}
+			print.append('}');
+		}
+		else {
+			print.append(value.toString());
+		}
+	}
+
+	/**
+	 * Get the cache file for a source file
+	 * @param file The source file
+	 */
+	private File entryFor(File file){
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch( IOException ex ){
+			path = file.getAbsolutePath();
+		}
+		return new File(filesDir, ScriptFile.hash(path) +".jwc");
+	}
+
+	/**
+	 * Load the page fingerprints from the last run
+	 */
+	private void loadPages(){
+		if( !pagesFile.exists() ){
+			return;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream(pagesFile) ) );
+			try {
+				if( in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION ){
+					return;
+				}
+				stamp = readString(in);
+
+				int count = in.readInt();
+				for(int i = 0; i < count; i++){
+					String page = readString(in);
+					pages.put(page, readString(in));
+				}
+			} finally {
+				in.close();
+			}
+		} catch( IOException ex ){
+			stamp = "";
+			pages.clear();
+		}
+	}
+
+	/**
+	 * Write the element tree and comments of a script file.
+	 *
+	 * Elements are written as a table and reference each other (children, parent, siblings, etc)
+	 * by their table index, so the tree is restored exactly as the parser built it.
+	 */
+	private void writeModel(DataOutputStream out, ScriptFile script) throws IOException {
+		Element global = script.root;
+		ArrayList<Comment> comments = (script.comments != null) ? script.comments : new ArrayList<Comment>();
+
+		// Comment table
+		IdentityHashMap<Element,Integer> commentIds = new IdentityHashMap<Element,Integer>();
+		for(int i = 0; i < comments.size(); i++){
+			commentIds.put(comments.get(i), Integer.valueOf(i));
+		}
+
+		// Element table, starting with global
+		IdentityHashMap<Element,Integer> ids = new IdentityHashMap<Element,Integer>();
+		ArrayList<Element> table = new ArrayList<Element>();
+		register(global, ids, table);
+		for(int i = 0; i < comments.size(); i++){
+			register(comments.get(i).previousSibling, ids, table);
+			register(comments.get(i).nextSibling, ids, table);
+		}
+		for(int i = 0; i < table.size(); i++){
+			Element elem = table.get(i);
+			for(int n = 0; n < elem.children.size(); n++){
+				register(elem.children.get(n), ids, table);
+			}
+			for(int n = 0; n < elem.params.length; n++){
+				register(elem.params[n], ids, table);
+			}
+			register(elem.parent, ids, table);
+			register(elem.scope, ids, table);
+			register(elem.previousSibling, ids, table);
+			register(elem.nextSibling, ids, table);
+			register(elem.firstChild, ids, table);
+			register(elem.lastChild, ids, table);
+		}
+
+		// Elements
+		out.writeInt(table.size());
+		for(int i = 0; i < table.size(); i++){
+			Element elem = table.get(i);
+
+			out.writeByte( (elem instanceof FunctionParam) ? KIND_PARAM : KIND_ELEMENT );
+			writeString(out, elem.name);
+			out.writeInt(elem.type);
+			out.writeInt(elem.lineno);
+			out.writeInt(elem.start);
+
+			int flags = 0;
+			flags |= elem.is_private ? FLAG_PRIVATE : 0;
+			flags |= elem.read_only ? FLAG_READ_ONLY : 0;
+			flags |= elem.write_only ? FLAG_WRITE_ONLY : 0;
+			flags |= elem.implicit_global ? FLAG_IMPLICIT_GLOBAL : 0;
+			flags |= elem.constructor ? FLAG_CONSTRUCTOR : 0;
+			flags |= elem.anonymous ? FLAG_ANONYMOUS : 0;
+			flags |= elem.implicit_obj ? FLAG_IMPLICIT_OBJ : 0;
+			out.writeInt(flags);
+
+			int[] datatypes = elem.getDatatypes();
+			out.writeInt(datatypes.length);
+			for(int n = 0; n < datatypes.length; n++){
+				out.writeInt(datatypes[n]);
+			}
+
+			out.writeInt(elem.params.length);
+			for(int n = 0; n < elem.params.length; n++){
+				out.writeInt( idOf(elem.params[n], ids) );
+			}
+
+			out.writeInt(elem.children.size());
+			for(int n = 0; n < elem.children.size(); n++){
+				out.writeInt( idOf(elem.children.get(n), ids) );
+			}
+
+			out.writeInt( idOf(elem.parent, ids) );
+			out.writeInt( idOf(elem.scope, ids) );
+			out.writeInt( idOf(elem.previousSibling, ids) );
+			out.writeInt( idOf(elem.nextSibling, ids) );
+			out.writeInt( idOf(elem.firstChild, ids) );
+			out.writeInt( idOf(elem.lastChild, ids) );
+			out.writeInt( idOf(elem.previousComment, commentIds) );
+			out.writeInt( idOf(elem.nextComment, commentIds) );
+		}
+
+		// Comments
+		out.writeInt(comments.size());
+		for(int i = 0; i < comments.size(); i++){
+			Comment comment = comments.get(i);
+			out.writeInt(comment.lineno);
+			out.writeInt(comment.start);
+			writeString(out, comment.getBody());
+			out.writeInt( idOf(comment.previousSibling, ids) );
+			out.writeInt( idOf(comment.nextSibling, ids) );
+		}
+	}
+
+	/**
+	 * Read the element tree and comments written by writeModel()
+	 * @return The global element
+	 */
+	private Element readModel(DataInputStream in, ScriptFile script, boolean hasComments) throws IOException {
+
+		// Elements
+		int count = in.readInt();
+		Element[] table = new Element[count];
+		int[][] refs = new int[count][];
+		for(int i = 0; i < count; i++){
+			byte kind = in.readByte();
+			String name = readString(in);
+
+			Element elem = (kind == KIND_PARAM) ? new FunctionParam(name) : new Element();
+			elem.name = name;
+			elem.type = in.readInt();
+			elem.lineno = in.readInt();
+			elem.start = in.readInt();
+
+			int flags = in.readInt();
+			elem.is_private = (flags & FLAG_PRIVATE) != 0;
+			elem.read_only = (flags & FLAG_READ_ONLY) != 0;
+			elem.write_only = (flags & FLAG_WRITE_ONLY) != 0;
+			elem.implicit_global = (flags & FLAG_IMPLICIT_GLOBAL) != 0;
+			elem.constructor = (flags & FLAG_CONSTRUCTOR) != 0;
+			elem.anonymous = (flags & FLAG_ANONYMOUS) != 0;
+			elem.implicit_obj = (flags & FLAG_IMPLICIT_OBJ) != 0;
+
+			int datatypes = in.readInt();
+			for(int n = 0; n < datatypes; n++){
+				elem.addDatatypeCode(in.readInt());
+			}
+
+			// References are resolved once all elements exist: [param count, params..., child count, children..., links...]
+			int params = in.readInt();
+			int[] paramRefs = new int[params];
+			for(int n = 0; n < params; n++){
+				paramRefs[n] = in.readInt();
+			}
+			int children = in.readInt();
+			int[] ref = new int[params + children + 10];
+			int r = 0;
+			ref[r++] = params;
+			for(int n = 0; n < params; n++){
+				ref[r++] = paramRefs[n];
+			}
+			ref[r++] = children;
+			while( r < ref.length ){
+				ref[r++] = in.readInt();
+			}
+
+			table[i] = elem;
+			refs[i] = ref;
+		}
+
+		// Comments
+		int commentCount = in.readInt();
+		ArrayList<Comment> comments = new ArrayList<Comment>(commentCount);
+		Comment lastComment = null;
+		for(int i = 0; i < commentCount; i++){
+			int lineno = in.readInt();
+			int start = in.readInt();
+			Comment comment = new Comment(lineno, start, readString(in));
+			comment.previousSibling = elementAt(table, in.readInt());
+			comment.nextSibling = elementAt(table, in.readInt());
+			comment.script = script;
+
+			if( lastComment != null ){
+				lastComment.nextComment = comment;
+				comment.previousComment = lastComment;
+			}
+			lastComment = comment;
+			comments.add(comment);
+		}
+
+		// Resolve references
+		Element global = table[0];
+		for(int i = 0; i < count; i++){
+			Element elem = table[i];
+			int[] ref = refs[i];
+			int r = 0;
+
+			elem.top = global;
+			elem.script = script;
+
+			int params = ref[r++];
+			if( params > 0 ){
+				elem.params = new FunctionParam[params];
+				for(int n = 0; n < params; n++){
+					elem.params[n] = (FunctionParam)table[ ref[r++] ];
+				}
+			}
+
+			int children = ref[r++];
+			for(int n = 0; n < children; n++){
+				elem.children.add( table[ ref[r++] ] );
+			}
+
+			elem.parent = elementAt(table, ref[r++]);
+			elem.scope = elementAt(table, ref[r++]);
+			elem.previousSibling = elementAt(table, ref[r++]);
+			elem.nextSibling = elementAt(table, ref[r++]);
+			elem.firstChild = elementAt(table, ref[r++]);
+			elem.lastChild = elementAt(table, ref[r++]);
+			elem.previousComment = commentAt(comments, ref[r++]);
+			elem.nextComment = commentAt(comments, ref[r++]);
+		}
+
+		script.comments = hasComments ? comments : null;
+		return global;
+	}
+
+	/**
+	 * Add an element to the element table if it's not already in it
+	 */
+	private static void register(Element elem, IdentityHashMap<Element,Integer> ids, ArrayList<Element> table){
+		if( elem != null && !(elem instanceof Comment) && !ids.containsKey(elem) ){
+			ids.put(elem, Integer.valueOf(table.size()));
+			table.add(elem);
+		}
+	}
+
+	/**
+	 * Get the table index of an element or -1
+	 */
+	private static int idOf(Element elem, IdentityHashMap<Element,Integer> ids){
+		Integer id = (elem != null) ? ids.get(elem) : null;
+		return (id != null) ? id.intValue() : -1;
+	}
+
+	private static Element elementAt(Element[] table, int id){
+		return (id > -1) ? table[id] : null;
+	}
+
+	private static Comment commentAt(ArrayList<Comment> comments, int id){
+		return (id > -1) ? comments.get(id) : null;
+	}
+
+	/**
+	 * Write a string which might be NULL or longer than writeUTF() allows
+	 */
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		if( str == null ){
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = str.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read a string written by writeString()
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if( length < 0 ){
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,350 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records where the time and memory of a doc run go, for 'jwalk doc --profile'.
+ *
+ * Each measurement is the wall time, CPU time and allocated bytes of the current thread
+ * between start() and record().  They're added up in counters by category and name:
+ *   stage    - The steps of the run, timed on the main thread
+ *   parse    - Reading and parsing each file, on the parse worker that did it
+ *   comments - Running the comment parser on each file
+ *   template - Rendering each template, added up over all its pages
+ *
+ * Since the files are parsed on several threads, the CPU time of the parse counters can add up
+ * to more than the wall time of the parse stage.  Allocated bytes are only counted on JVMs that
+ * can measure them per thread.
+ */
+public class DocProfile {
+
+	public static final String STAGE = "stage";
+	public static final String PARSE = "parse";
+	public static final String COMMENTS = "comments";
+	public static final String TEMPLATE = "template";
+
+	private static final String[] CATEGORIES = { STAGE, PARSE, COMMENTS, TEMPLATE };
+
+	/**
+	 * The totals of one counter
+	 */
+	public static class Counter {
+		public String category;
+		public String name;
+		public long count = 0;
+		public long wall = 0;
+		public long cpu = 0;
+		public long allocated = 0;
+		public long slowestWall = 0;
+		public String slowest = null;
+		int sequence;
+
+		Counter(String category, String name, int sequence){
+			this.category = category;
+			this.name = name;
+			this.sequence = sequence;
+		}
+
+		synchronized void add(long wall, long cpu, long allocated, String detail){
+			this.count++;
+			this.wall += wall;
+			this.cpu += cpu;
+			this.allocated += allocated;
+			if( detail != null && wall >= slowestWall ){
+				slowestWall = wall;
+				slowest = detail;
+			}
+		}
+	}
+
+	/**
+	 * Where a measurement started, see start()
+	 */
+	public static class Sample {
+		long wall;
+		long cpu;
+		long allocated;
+	}
+
+	private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private com.sun.management.ThreadMXBean allocations = null;
+	private boolean measureCpu;
+	private ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+	private AtomicInteger sequence = new AtomicInteger();
+
+	public DocProfile(){
+		measureCpu = threads.isCurrentThreadCpuTimeSupported();
+		if( measureCpu && !threads.isThreadCpuTimeEnabled() ){
+			threads.setThreadCpuTimeEnabled(true);
+		}
+
+		if( threads instanceof com.sun.management.ThreadMXBean ){
+			allocations = (com.sun.management.ThreadMXBean)threads;
+			if( allocations.isThreadAllocatedMemorySupported() ){
+				allocations.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				allocations = null;
+			}
+		}
+	}
+
+	/**
+	 * Start measuring on the current thread
+	 */
+	public Sample start(){
+		Sample sample = new Sample();
+		sample.wall = System.nanoTime();
+		sample.cpu = measureCpu ? threads.getCurrentThreadCpuTime() : 0;
+		sample.allocated = allocatedBytes();
+		return sample;
+	}
+
+	/**
+	 * Add what was used since start() to a counter
+	 * @param category One of STAGE, PARSE, COMMENTS or TEMPLATE
+	 * @param name The name of the counter, i.e. the file or template
+	 * @param start The sample returned by start(), on this thread
+	 */
+	public void record(String category, String name, Sample start){
+		record(category, name, null, start);
+	}
+
+	/**
+	 * Add what was used since start() to a counter
+	 * @param category One of STAGE, PARSE, COMMENTS or TEMPLATE
+	 * @param name The name of the counter, i.e. the file or template
+	 * @param detail What this measurement was for, kept if it's the slowest one of the counter (i.e. the page of a template)
+	 * @param start The sample returned by start(), on this thread
+	 */
+	public void record(String category, String name, String detail, Sample start){
+		long wall = System.nanoTime() - start.wall;
+		long cpu = measureCpu ? threads.getCurrentThreadCpuTime() - start.cpu : 0;
+		long allocated = allocatedBytes() - start.allocated;
+
+		String key = category +"\n"+ name;
+		Counter counter = counters.get(key);
+		if( counter == null ){
+			Counter created = new Counter(category, name, sequence.getAndIncrement());
+			counter = counters.putIfAbsent(key, created);
+			if( counter == null ){
+				counter = created;
+			}
+		}
+		counter.add(wall, cpu, allocated, detail);
+	}
+
+	/**
+	 * The bytes the current thread has allocated so far, or 0 if it can't be measured
+	 */
+	private long allocatedBytes(){
+		if( allocations == null ){
+			return 0;
+		}
+		return allocations.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	/**
+	 * Get the counters of a category, the slowest first.  Stages are in the order they ran.
+	 * @param category One of STAGE, PARSE, COMMENTS or TEMPLATE
+	 */
+	public List<Counter> getCounters(String category){
+		ArrayList<Counter> list = new ArrayList<Counter>();
+		Iterator<Counter> iter = counters.values().iterator();
+		Counter counter;
+		while( iter.hasNext() ){
+			counter = iter.next();
+			if( counter.category.equals(category) ){
+				list.add(counter);
+			}
+		}
+
+		if( category.equals(STAGE) ){
+			Collections.sort(list, new Comparator<Counter>(){
+				public int compare(Counter a, Counter b){
+					return a.sequence - b.sequence;
+				}
+			});
+		} else {
+			Collections.sort(list, new Comparator<Counter>(){
+				public int compare(Counter a, Counter b){
+					return (a.wall == b.wall) ? a.name.compareTo(b.name) : (a.wall > b.wall ? -1 : 1);
+				}
+			});
+		}
+		return list;
+	}
+
+	/**
+	 * Print the stages, and the slowest files and templates
+	 * @param out Where to print the report
+	 * @param top How many of the slowest files and templates to print
+	 */
+	public void report(PrintStream out, int top){
+		StringBuilder report = new StringBuilder();
+		report.append("\n== Profile ==\n");
+		if( !measureCpu ){
+			report.append("(CPU time can't be measured on this JVM)\n");
+		}
+		if( allocations == null ){
+			report.append("(Allocated bytes can't be measured on this JVM)\n");
+		}
+
+		report.append("\nStages:\n");
+		appendRows(report, getCounters(STAGE), 0, false);
+
+		report.append("\nSlowest files to parse:\n");
+		appendRows(report, getCounters(PARSE), top, true);
+
+		report.append("\nSlowest files to run the comment parser on:\n");
+		appendRows(report, getCounters(COMMENTS), top, true);
+
+		report.append("\nSlowest templates:\n");
+		appendRows(report, getCounters(TEMPLATE), top, true);
+
+		out.print(report.toString());
+	}
+
+	/**
+	 * Add a table of counters to the report
+	 * @param top The most rows to add, or 0 for all of them
+	 * @param total Add a total of all the counters, not only the ones shown
+	 */
+	private static void appendRows(StringBuilder report, List<Counter> list, int top, boolean total){
+		if( list.isEmpty() ){
+			report.append("  (none)\n");
+			return;
+		}
+
+		report.append(String.format(Locale.US, "  %10s %10s %12s %7s  %s%n", "wall ms", "cpu ms", "allocated", "count", "name"));
+		Counter all = new Counter("", "total", 0);
+		Counter counter;
+		for( int i = 0; i < list.size(); i++ ){
+			counter = list.get(i);
+			all.add(counter.wall, counter.cpu, counter.allocated, null);
+			all.count += counter.count - 1;
+			if( top == 0 || i < top ){
+				appendRow(report, counter);
+			}
+		}
+		if( total ){
+			appendRow(report, all);
+		}
+	}
+
+	/**
+	 * Add a counter to the report
+	 */
+	private static void appendRow(StringBuilder report, Counter counter){
+		String name = counter.name;
+		if( counter.slowest != null && counter.count > 1 ){
+			name += " (slowest: "+ counter.slowest +", "+ millis(counter.slowestWall) +" ms)";
+		}
+		report.append(String.format(Locale.US, "  %10s %10s %12s %7d  %s%n",
+				millis(counter.wall), millis(counter.cpu), bytes(counter.allocated), counter.count, name));
+	}
+
+	private static String millis(long nanos){
+		return String.format(Locale.US, "%.1f", nanos / 1000000.0);
+	}
+
+	private static String bytes(long bytes){
+		if( bytes >= 1024 * 1024 ){
+			return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024.0));
+		}
+		return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+	}
+
+	/**
+	 * Save all the counters as JSON:
+	 * { "stage": [ { "name": ..., "count": ..., "wallNanos": ..., "cpuNanos": ..., "allocatedBytes": ... }, ... ], "parse": [...], ... }
+	 * @param file The JSON file
+	 */
+	public void writeJson(File file) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		for( int c = 0; c < CATEGORIES.length; c++ ){
+			List<Counter> list = getCounters(CATEGORIES[c]);
+			json.append("  ");
+			quote(json, CATEGORIES[c]);
+			json.append(": [");
+
+			Counter counter;
+			for( int i = 0; i < list.size(); i++ ){
+				counter = list.get(i);
+				json.append( (i > 0) ? ",\n    " : "\n    " );
+				json.append("{\"name\": ");
+				quote(json, counter.name);
+				json.append(", \"count\": ").append(counter.count);
+				json.append(", \"wallNanos\": ").append(counter.wall);
+				json.append(", \"cpuNanos\": ").append(counter.cpu);
+				json.append(", \"allocatedBytes\": ").append(counter.allocated);
+				if( counter.slowest != null ){
+					json.append(", \"slowest\": ");
+					quote(json, counter.slowest);
+					json.append(", \"slowestWallNanos\": ").append(counter.slowestWall);
+				}
+				json.append("}");
+			}
+			json.append( list.isEmpty() ? "]" : "\n  ]" );
+			json.append( (c + 1 < CATEGORIES.length) ? ",\n" : "\n" );
+		}
+		json.append("}\n");
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), ScriptFile.DEFAULT_CHARSET);
+		try {
+			out.write(json.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Add a JSON string
+	 */
+	private static void quote(StringBuilder json, String value){
+		json.append('"');
+		char c;
+		for( int i = 0; i < value.length(); i++ ){
+			c = value.charAt(i);
+			switch( c ){
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if( c < 0x20 ){
+					json.append(String.format("\\u%04x", (int)c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+}
@@ -1,13 +1,15 @@
 package com.jwalkjs;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.mozilla.javascript.Context;
@@ -16,7 +18,7 @@ import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
 import org.mozilla.javascript.ScriptableObject;
 
-public class DocTool implements FileFilter {
+public class DocTool {
 
 	private static Context cx;
 	private static ScriptableObject scope;
@@ -24,14 +26,36 @@ public class DocTool implements FileFilter {
 
 	private static File doctoolDir;
 	private static File commentParser;
+	private static boolean useNativeParser = false;
 	private static File templateSet;
 	private static File outDir;
 	private static File sourceJS;
+	private static int threads = Runtime.getRuntime().availableProcessors();
+	private static int renderThreads = 1;
+	private static boolean useCache = true;
+	private static DocCache cache = null;
+	private static SymbolIndex symbols = new SymbolIndex();
+	private static File indexFile = null;
+	private static boolean watch = false;
+	private static boolean keepGoing = false;
+	private static long timeout = 0;
+	private static List<ParseFailure> failures = new ArrayList<ParseFailure>();
+	private static boolean profiling = false;
+	private static DocProfile profile = null;
+	private static File profileJson = null;
+	private static int profileTop = 10;
 
 	private static Scriptable commentParserObj;
 	private static Function commentParserFunc;
+	private static Function commentParserFileFunc;
+	private static NativeDocParser nativeParser;
+
+	// The comment parser that's loaded, kept between runs in a resident server
+	private static File loadedParser = null;
+	private static long loadedParserModified = 0;
 
 	public static void main(String[] args) {
+		resetOptions();
 		try {
 
 			appDir = new File(System.getProperty("java.class.path"));
@@ -47,99 +71,352 @@ public class DocTool implements FileFilter {
 			String tmpl = null;
 			File output = null;
 
+			if( profiling ){
+				profile = new DocProfile();
+			}
+
 			// Load doc parser
+			DocProfile.Sample start = (profile != null) ? profile.start() : null;
 			loadDocParser();
+			if( profile != null ){
+				profile.record(DocProfile.STAGE, "load comment parser", start);
+			}
+
+			// Incremental builds
+			if( useCache ){
+				cache = new DocCache( new File(outDir, ".jwalk-cache") );
+				cache.setStamp( cacheStamp() );
+			}
 
 			// Parse all files
 			if( sourceJS.isDirectory() ){
-				System.out.println("Parsing source files in '"+ sourceJS.getPath() +"/' ...");
+				System.out.println("Parsing source files in '"+ SourcePaths.display(sourceJS) +"/' ...");
 			} else {
 				System.out.println("Parsing '"+ sourceJS.getName() +"' ...");
 			}
+			SourceWatcher watcher = null;
+			if( watch ){
+				watcher = new SourceWatcher(new File[]{ sourceJS }, true);
+			}
+			start = (profile != null) ? profile.start() : null;
 			ArrayList<ScriptFile> scripts = parseSourceFiles(sourceJS);
-
-			// Sort file list by name
-			Collections.sort(scripts, new ListCompare());
-
-			// Run comment parser on all files
-			System.out.println("Reading comments...");
-			runCommentParser(scripts);
+			if( profile != null ){
+				profile.record(DocProfile.STAGE, "parse and run comment parser", start);
+			}
 
 			// Parse templates and output
-			System.out.println("Running templates...");
-			Template templates = new Template( templateSet );
-			templates.dispatch(outDir, scripts.toArray( new ScriptFile[ scripts.size() ] ) );
-			templates.close();
-
-			Context.exit();
+			runTemplates(scripts);
 
 			System.out.println("Done!");
+			reportFailures();
+			reportProfile();
+
+			if( watcher != null ){
+				watchSourceFiles(watcher, scripts);
+			}
 
 		} catch( Exception ex ){
 			System.err.println("\nAn error occurred!");
 			System.err.println(ex.getMessage());
+		} finally {
+			if( cx != null ){
+				Context.exit();
+				cx = null;
+			}
 		}
 	}
 
 	/**
-	 * Parse a JavaScript source file or directory
-	 * @param source A source file or directory
+	 * Set all the options back to their defaults, for the next run in the same process
 	 */
-	private static ArrayList<ScriptFile> parseSourceFiles(File source) throws Exception {
-		ArrayList<ScriptFile> parsed = new ArrayList<ScriptFile>();
+	private static void resetOptions(){
+		commentParser = null;
+		useNativeParser = false;
+		templateSet = null;
+		outDir = null;
+		sourceJS = null;
+		threads = Runtime.getRuntime().availableProcessors();
+		renderThreads = 1;
+		useCache = true;
+		cache = null;
+		symbols = new SymbolIndex();
+		indexFile = null;
+		watch = false;
+		keepGoing = false;
+		timeout = 0;
+		failures = new ArrayList<ParseFailure>();
+		profiling = false;
+		profile = null;
+		profileJson = null;
+		profileTop = 10;
+	}
+
+	/**
+	 * Print the files that couldn't be parsed, and were left out of the documentation
+	 */
+	private static void reportFailures(){
+		if( failures.isEmpty() ){
+			return;
+		}
 
-		// Get sources
-		File[] sources;
-		if( source.isDirectory() ){
-			sources = source.listFiles( new DocTool() );
+		System.err.println("\n"+ failures.size() +" file(s) could not be parsed and were skipped:");
+		for( int i = 0; i < failures.size(); i++ ){
+			System.err.println("  "+ failures.get(i));
 		}
-		else{
-			sources = new File[1];
-			sources[0] = source;
+	}
+
+	/**
+	 * Print where the time went, and save it as JSON if it was asked for
+	 */
+	private static void reportProfile() throws IOException {
+		if( profile == null ){
+			return;
 		}
 
-		// Parse source files
-		File file;
-		for( int i = 0; i < sources.length; i++ ){
-			file = sources[i];
+		profile.report(System.out, profileTop);
+		if( profileJson != null ){
+			profile.writeJson(profileJson);
+			System.out.println("\nSaved the profile to '"+ profileJson.getPath() +"'");
+		}
+	}
 
-			if( file.isDirectory() ){
-				ArrayList<ScriptFile> scripts = parseSourceFiles( file );
-				parsed.addAll( scripts );
+	/**
+	 * Run the templates for all the parsed files
+	 * @param scripts The parsed files
+	 */
+	private static void runTemplates(ArrayList<ScriptFile> scripts) throws Exception {
+
+		// Sort file list by name
+		ArrayList<ScriptFile> sorted = new ArrayList<ScriptFile>(scripts);
+		Collections.sort(sorted, new ListCompare());
+
+		System.out.println("Running templates...");
+		DocProfile.Sample start = (profile != null) ? profile.start() : null;
+		Template templates = new Template( templateSet );
+		templates.setCache(cache);
+		templates.setSymbols(symbols);
+		templates.setRenderThreads(renderThreads);
+		templates.setProfile(profile);
+		try {
+			templates.dispatch(outDir, sorted.toArray( new ScriptFile[ sorted.size() ] ) );
+
+			// Remove the pages of deleted files
+			if( cache != null ){
+				cache.removeUnusedPages();
+			}
+		} finally {
+			templates.close();
+			if( cache != null ){
+				cache.save();
+			}
+		}
+		if( profile != null ){
+			profile.record(DocProfile.STAGE, "run templates", start);
+		}
+
+		// Save the symbols for 'jwalk query'
+		if( indexFile != null ){
+			start = (profile != null) ? profile.start() : null;
+			IndexFile.update(indexFile, symbols);
+			if( profile != null ){
+				profile.record(DocProfile.STAGE, "save index", start);
 			}
-			else {
+		}
+	}
+
+	/**
+	 * Keep the parsed files in memory, and parse the files that change and run the templates again
+	 * until the process is stopped.  The cache makes sure only the pages of the changed files are rendered.
+	 * @param watcher Watches the source directory
+	 * @param scripts The files that have been parsed so far
+	 */
+	private static void watchSourceFiles(SourceWatcher watcher, ArrayList<ScriptFile> scripts) throws Exception {
+		JWalkParser session = new JWalkParser();
+		session.setCache(cache);
+
+		System.out.println("\nWatching '"+ sourceJS.getPath() +"' for changes...");
+		while( true ){
+			SourceWatcher.Changes changes = watcher.next();
+
+			// Drop deleted and changed files
+			ScriptFile script;
+			File file;
+			for( int i = scripts.size() - 1; i >= 0; i-- ){
+				script = scripts.get(i);
+				file = script.getFile().getAbsoluteFile();
+				if( changes.isDeleted(file) || changes.changed.contains(file) ){
+					scripts.remove(i);
+					symbols.remove(script.path);
+					if( changes.isDeleted(file) ){
+						System.out.println("Removed '"+ script.path +"'");
+					}
+				}
+			}
+
+			// Parse the changed files
+			Iterator<File> iter = changes.changed.iterator();
+			while( iter.hasNext() ){
+				file = sourcePath( iter.next() );
+				if( !file.exists() ){
+					continue;
+				}
+
+				System.out.println("Parsing '"+ file.getPath() +"' ...");
 				try {
-					ScriptFile script = JWalkParser.parseFile(file, true);
-					parsed.add(script);
-				} catch( IOException ex ){
-					throw new Exception("Could not read or process the file '"+ file.getAbsolutePath() +"'");
+					script = session.parse(file, true);
+				} catch( Exception ex ){
+					System.err.println( new ParseFailure(file, ex) );
+					continue;
+				} catch( StackOverflowError ex ){
+					System.err.println( new ParseFailure(file, ex) );
+					continue;
 				}
+				runCommentParser(script);
+				symbols.add(script);
+				scripts.add(script);
 			}
 
+			try {
+				runTemplates(scripts);
+				System.out.println("Done!");
+			} catch( Exception ex ){
+				System.err.println("\nAn error occurred!");
+				System.err.println(ex.getMessage());
+			}
 		}
+	}
+
+	/**
+	 * Get the path of a file the watcher reports, the same way the first run named it,
+	 * so its pages and symbols stay under the same paths.
+	 * @param file The absolute path of a source file
+	 */
+	private static File sourcePath(File file){
+		File root = sourceJS.getAbsoluteFile();
+		if( file.equals(root) ){
+			return sourceJS;
+		}
+
+		String prefix = root.getPath() + File.separator;
+		if( file.getPath().startsWith(prefix) ){
+			return new File(sourceJS, file.getPath().substring(prefix.length()));
+		}
+		return file;
+	}
+
+	/**
+	 * Parse a JavaScript source file or directory and run the comment parser on each file.
+	 * The files are parsed in the background, so the comments of each file are read while the next files are still being parsed.
+	 * @param source A source file or directory
+	 */
+	private static ArrayList<ScriptFile> parseSourceFiles(File source) throws Exception {
+		ArrayList<ScriptFile> parsed = new ArrayList<ScriptFile>();
+
+		ParsePipeline pipeline = new ParsePipeline(source, true, threads);
+		pipeline.setCache(cache);
+		pipeline.setIndex(symbols);
+		pipeline.setKeepGoing(keepGoing);
+		pipeline.setTimeout(timeout);
+		pipeline.setProfile(profile);
+		try {
+			ScriptFile script;
+			while( (script = pipeline.next()) != null ){
+				runCommentParser(script);
+				parsed.add(script);
+			}
+		} catch( IOException ex ){
+			throw new Exception(ex.getMessage());
+		} finally {
+			pipeline.close();
+		}
+		failures = pipeline.getFailures();
 
 		return parsed;
 	}
 
 	/**
-	 * Run the comment parser on all parsed scripts
-	 * @param scripts
+	 * Create the doc elements of a parsed script and run the comment parser on them
+	 * @param script
 	 */
-	private static void runCommentParser( ArrayList<ScriptFile> scripts ){
-		ScriptFile script;
-		for ( int i = 0; i < scripts.size(); i++ ){
-			script = scripts.get(i);
+	private static void runCommentParser( ScriptFile script ){
+		DocProfile.Sample start = (profile != null) ? profile.start() : null;
+		Element global = script.root;
+		Element[] elements = global.getAllChildren();
+		script.global = global.generateDocElement(cx, scope);
+
+		ElementDoc[] docs = new ElementDoc[elements.length];
+		for(int n = 0; n < elements.length; n++){
+			docs[n] = elements[n].generateDocElement(cx, scope);
+		}
+
+		if( nativeParser != null ){
+			nativeParser.parseFile(docs, elements);
+		}
 
-			Element global = script.global.element;
-			Element[] elements = global.getAllChildren();
+		// Hand all the elements to the comment parser in one call, if it has parseFile(docs, elements)
+		else if( commentParserFileFunc != null ){
+			Object[] jsDocs = new Object[docs.length];
+			Object[] jsElements = new Object[elements.length];
+			for(int n = 0; n < elements.length; n++){
+				jsDocs[n] = Context.javaToJS(docs[n], scope);
+				jsElements[n] = Context.javaToJS(elements[n], scope);
+			}
+			commentParserFileFunc.call(cx, scope, commentParserObj,
+					new Object[]{ cx.newArray(scope, jsDocs), cx.newArray(scope, jsElements) });
+		}
 
-			// Call comment parser for each JS element in the source
-			ElementDoc doc;
+		// Call comment parser for each JS element in the source
+		else {
 			for(int n = 0; n < elements.length; n++){
-				doc = elements[n].generateDocElement(cx, scope);
-				commentParserFunc.call(cx, scope, commentParserObj, new Object[]{ doc, elements[n] });
+				commentParserFunc.call(cx, scope, commentParserObj,
+						new Object[]{ Context.javaToJS(docs[n], scope), Context.javaToJS(elements[n], scope) });
 			}
 		}
+
+		// The children don't change from here on, so the templates can share their sorted lists
+		script.global.freeze();
+		for(int n = 0; n < docs.length; n++){
+			docs[n].freeze();
+		}
+
+		if( profile != null ){
+			profile.record(DocProfile.COMMENTS, script.path, start);
+		}
+	}
+
+	/**
+	 * Create a stamp that identifies the comment parser and template set.
+	 * When either of them change, all the pages need to be rendered again.
+	 */
+	private static String cacheStamp() throws IOException {
+		StringBuilder stamp = new StringBuilder();
+		stamp.append(JWalk.version);
+		if( useNativeParser ){
+			stamp.append('\n').append(NativeDocParser.NAME);
+		} else {
+			stampFile(stamp, commentParser);
+		}
+		stampFile(stamp, templateSet);
+		return stamp.toString();
+	}
+
+	/**
+	 * Add a file, or all the files in a directory, to the cache stamp
+	 */
+	private static void stampFile(StringBuilder stamp, File file) throws IOException {
+		stamp.append('\n').append(file.getCanonicalPath());
+
+		if( file.isDirectory() ){
+			File[] files = file.listFiles();
+			if( files != null ){
+				Arrays.sort(files);
+				for( int i = 0; i < files.length; i++ ){
+					stampFile(stamp, files[i]);
+				}
+			}
+		} else {
+			stamp.append(':').append(file.length()).append(':').append(file.lastModified());
+		}
 	}
 
 	/**
@@ -185,6 +462,15 @@ public class DocTool implements FileFilter {
 					return false;
 				}
 
+				// The built-in version of default.js
+				if( next.equals(NativeDocParser.NAME) ){
+					System.out.println("Using parser: "+ next );
+					useNativeParser = true;
+					commentParser = null;
+					i++;
+					continue;
+				}
+
 				// Check existence of the file
 				if( (file = new File(next)).exists() ){
 					System.out.println("Using parser: "+ file.getAbsolutePath() );
@@ -198,6 +484,7 @@ public class DocTool implements FileFilter {
 
 				i++;
 				commentParser = file;
+				useNativeParser = false;
 
 			} else if( arg.equals("--tmpl") || arg.equals("-t") ){
 				if( next == null ){
@@ -240,6 +527,108 @@ public class DocTool implements FileFilter {
 				i++;
 				outDir = file;
 
+			} else if( arg.equals("--threads") || arg.equals("-j") ){
+				if( next == null ){
+					System.err.println("You must define the number of threads when you use the '"+ arg +"' flag.");
+					return false;
+				}
+
+				try {
+					threads = Integer.parseInt(next);
+				} catch( NumberFormatException ex ){
+					threads = 0;
+				}
+				if( threads < 1 ){
+					System.err.println("'"+ next +"' is not a valid number of threads.");
+					return false;
+				}
+
+				i++;
+
+			} else if( arg.equals("--render-threads") || arg.equals("-r") ){
+				if( next == null ){
+					System.err.println("You must define the number of threads when you use the '"+ arg +"' flag.");
+					return false;
+				}
+
+				try {
+					renderThreads = Integer.parseInt(next);
+				} catch( NumberFormatException ex ){
+					renderThreads = 0;
+				}
+				if( renderThreads < 1 ){
+					System.err.println("'"+ next +"' is not a valid number of threads.");
+					return false;
+				}
+
+				i++;
+
+			} else if( arg.equals("--index") ){
+				if( next == null ){
+					System.err.println("You must define the index file when you use the '"+ arg +"' flag.");
+					return false;
+				}
+				indexFile = new File(next);
+				i++;
+
+			} else if( arg.equals("--watch") ){
+				watch = true;
+
+			} else if( arg.equals("--keep-going") || arg.equals("-k") ){
+				keepGoing = true;
+
+			} else if( arg.equals("--timeout") ){
+				if( next == null ){
+					System.err.println("You must define the number of seconds when you use the '"+ arg +"' flag.");
+					return false;
+				}
+
+				try {
+					timeout = (long)(Double.parseDouble(next) * 1000);
+				} catch( NumberFormatException ex ){
+					timeout = 0;
+				}
+				if( timeout <= 0 ){
+					System.err.println("'"+ next +"' is not a valid number of seconds.");
+					return false;
+				}
+
+				i++;
+
+			} else if( arg.equals("--profile") ){
+				profiling = true;
+
+			} else if( arg.equals("--profile-json") ){
+				if( next == null ){
+					System.err.println("You must define the JSON file when you use the '"+ arg +"' flag.");
+					return false;
+				}
+				profileJson = new File(next);
+				profiling = true;
+				i++;
+
+			} else if( arg.equals("--profile-top") ){
+				if( next == null ){
+					System.err.println("You must define the number of files when you use the '"+ arg +"' flag.");
+					return false;
+				}
+
+				try {
+					profileTop = Integer.parseInt(next);
+				} catch( NumberFormatException ex ){
+					profileTop = 0;
+				}
+				if( profileTop < 1 ){
+					System.err.println("'"+ next +"' is not a valid number of files.");
+					return false;
+				}
+				profiling = true;
+
+				i++;
+
+			} else if( arg.equals("--no-cache") ){
+				useCache = false;
+
 			} else { // Source File
 
 				file = new File(arg);
@@ -266,7 +655,7 @@ public class DocTool implements FileFilter {
 		}
 
 		// Default Comment Parser
-		if( commentParser == null ){
+		if( commentParser == null && !useNativeParser ){
 			commentParser = new File(parserDir, "default.js");
 
 			if( !commentParser.exists() ){
@@ -315,9 +704,30 @@ public class DocTool implements FileFilter {
 		out.append("    --help       : Display this help and exits \n");
 		out.append("    --list       : Lists all document parsers and templates that are\n");
 		out.append("                   loaded in the doctool directory\n");
-		out.append("    -p, --parser : The doc parser name or file.\n");
+		out.append("    -p, --parser : The doc parser name or file, or 'native' for the built-in\n");
+		out.append("                   Java version of the default parser.\n");
 		out.append("    -t, --tmpl   : The template set name or directory path.\n");
 		out.append("    -o, --out    : The output directory.\n");
+		out.append("    -j, --threads: The number of threads used to parse the source files.\n");
+		out.append("                   Defaults to the number of processors.\n");
+		out.append("    -r, --render-threads: The number of threads used to render templates.\n");
+		out.append("                   Defaults to 1, which renders each page in order.\n");
+		out.append("    --index      : Save the symbols of all the files to an index file,\n");
+		out.append("                   for 'jwalk query'.\n");
+		out.append("    --watch      : Keep running, and update the documentation when source\n");
+		out.append("                   files are changed, added or removed.\n");
+		out.append("    -k, --keep-going: Skip the files that can't be parsed, and list them at\n");
+		out.append("                   the end, instead of stopping at the first one.\n");
+		out.append("    --timeout    : Give up on a file if parsing it takes longer than this\n");
+		out.append("                   many seconds. The parse can't be stopped, so it keeps\n");
+		out.append("                   running, and using a processor, in the background.\n");
+		out.append("    --profile    : Print the time, CPU time and memory used by each stage,\n");
+		out.append("                   and the slowest files and templates.\n");
+		out.append("    --profile-json: Also save the profile to this JSON file.\n");
+		out.append("    --profile-top: How many of the slowest files and templates to print.\n");
+		out.append("                   Defaults to 10.\n");
+		out.append("    --no-cache   : Parse every file and render every page, instead of only\n");
+		out.append("                   the ones that changed since the last run.\n");
 		out.append("    <path>       : The source file or directory.\n");
 
 		System.out.println(out.toString());
@@ -331,24 +741,49 @@ public class DocTool implements FileFilter {
 		throws Exception {
 
 		cx = (new ContextFactory()).enterContext();
+		nativeParser = null;
+
+		// The built-in parser only needs a scope for the doc objects
+		if( useNativeParser ){
+			if( scope == null || loadedParser != null ){
+				scope = cx.initStandardObjects();
+				JSHelpers.load(scope);
+				loadedParser = null;
+			}
+			nativeParser = new NativeDocParser(cx, scope);
+			return;
+		}
+
+		// Already loaded by an earlier run
+		if( scope != null && commentParser.equals(loadedParser) && commentParser.lastModified() == loadedParserModified ){
+			return;
+		}
+
 		scope = cx.initStandardObjects();
 
-		// Add helper JS methods
+		// Add helper JS methods, they print to System.out
 		JSHelpers.load(scope);
-		scope.associateValue("output_writer", System.out);
 
-		cx.evaluateReader(scope, new FileReader(commentParser), commentParser.getAbsolutePath(), 1, null);
+		FileReader reader = new FileReader(commentParser);
+		try {
+			cx.evaluateReader(scope, reader, commentParser.getAbsolutePath(), 1, null);
+		} finally {
+			reader.close();
+		}
 		commentParserObj = (Scriptable) scope.get("DocParser", scope);
-		commentParserFunc = (Function) ScriptableObject.getProperty(commentParserObj, "parseElement");
-	}
 
-	/**
-	 * Filter that only shows *.js files and directories
-	 * @param pathname The file to be tested
-	 * @return
-	 */
-	public boolean accept(File pathname) {
-		return ( pathname.isDirectory() || pathname.getName().toLowerCase().matches("\\.js$") );
+		// parseElement(doc, element) is called for each element, unless the parser
+		// has parseFile(docs, elements), which gets all the elements of a file in one call
+		Object elementFunc = ScriptableObject.getProperty(commentParserObj, "parseElement");
+		Object fileFunc = ScriptableObject.getProperty(commentParserObj, "parseFile");
+		commentParserFunc = (elementFunc instanceof Function) ? (Function) elementFunc : null;
+		commentParserFileFunc = (fileFunc instanceof Function) ? (Function) fileFunc : null;
+		if( commentParserFunc == null && commentParserFileFunc == null ){
+			throw new Exception("The comment parser '"+ commentParser.getPath() +"' has no parseElement(doc, element) or parseFile(docs, elements) function.");
+		}
+
+		loadedParser = commentParser;
+		loadedParserModified = commentParser.lastModified();
 	}
 
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.jwalkjs;
 
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import org.mozilla.javascript.*;
 
 public class Element implements Comparable {
@@ -28,13 +29,15 @@ public class Element implements Comparable {
 	//static final int TYPE_OBJLIT	= 16;
 	static final int TYPE_UNKNOWN	= -100;
 
+	static final FunctionParam[] NO_PARAMS = new FunctionParam[0];
+
 	// Global properties
 	protected int type;
 	public String name = null;
 
 	public int lineno = -1;
 	public int start = -1;
-	protected Node node = null;
+	protected Node node = null;  // Only while the tree is being built, see compact()
 
 	public Element top;
 	public Element scope;
@@ -49,6 +52,11 @@ public class Element implements Comparable {
 
 	protected ArrayList<Element> children = new ArrayList();
 	public Element firstChild;
+
+	// Name index of the children, built when first needed.
+	// Names are compared by identity, like findByName always has, and map to the first child with that name.
+	private IdentityHashMap<String,Element> childIndex = null;
+	private boolean duplicateNames = false;
 	public Element lastChild;
 
 	public boolean is_private = false;
@@ -58,13 +66,13 @@ public class Element implements Comparable {
 	public boolean read_only = false;
 	public boolean write_only = false;
 	public boolean implicit_global = false;
-	public ArrayList<Integer> datatypes = new ArrayList();  // Token types
+	private int datatypes = 0;  // A bit for each TYPE_* datatype assigned, see datatypeBit()
 
 	// Function properties
 	public boolean constructor = false;
 	public boolean anonymous = false;
-	public FunctionParam[] params = new FunctionParam[0];
-	public ArrayList<Object> objReturns = new ArrayList();  // Object Literal nodes, return types go to the datatypes ArrayList
+	public FunctionParam[] params = NO_PARAMS;
+	public ArrayList<Element> objReturns = null;  // Object Literal elements, created for the first one.  Return types go to the datatypes
 
 	// Object properties
 	public boolean implicit_obj = false; // not defined explicitly
@@ -148,6 +156,7 @@ public class Element implements Comparable {
 		// Add as child of block
 		child.scope = this;
 		children.add(child);
+		indexChild(child);
 	}
 
 	/**
@@ -167,6 +176,12 @@ public class Element implements Comparable {
 	public void addChildren(ArrayList<Element> children, boolean rebuild){
 		this.children.addAll(children);
 
+		if(childIndex != null){
+			for(int i = 0; i < children.size(); i++){
+				indexChild(children.get(i));
+			}
+		}
+
 		if(rebuild){
 			rebuildChildList();
 		}
@@ -196,6 +211,7 @@ public class Element implements Comparable {
 
 			// Remove
 			children.remove(child);
+			unindexChild(child);
 
 		}
 	}
@@ -244,12 +260,9 @@ public class Element implements Comparable {
 	public Element findByName(String name, boolean recurse, boolean searchParams){
 
 		// Search through children for this variable name
-		for(int i = 0; i < children.size(); i++){
-			Element child = children.get(i);
-
-			if(child.name == name){
-				return child;
-			}
+		Element child = getChildIndex().get(name);
+		if(child != null){
+			return child;
 		}
 
 		// Look in function parameters
@@ -276,6 +289,56 @@ public class Element implements Comparable {
 		return findByName(name, recurse, false);
 	}
 
+	/**
+	 * Get the name index of the children, building it if necessary
+	 */
+	private IdentityHashMap<String,Element> getChildIndex(){
+		if(childIndex == null){
+			childIndex = new IdentityHashMap<String,Element>();
+			duplicateNames = false;
+
+			for(int i = 0; i < children.size(); i++){
+				indexChild(children.get(i));
+			}
+		}
+		return childIndex;
+	}
+
+	/**
+	 * Add a child, which has just been appended to the children list, to the name index
+	 * @param child
+	 */
+	private void indexChild(Element child){
+		if(childIndex == null){
+			return;
+		}
+
+		if(childIndex.containsKey(child.name)){
+			duplicateNames = true;
+		}
+		else{
+			childIndex.put(child.name, child);
+		}
+	}
+
+	/**
+	 * Remove a child, which has just been removed from the children list, from the name index
+	 * @param child
+	 */
+	private void unindexChild(Element child){
+		if(childIndex == null){
+			return;
+		}
+
+		// Another child might have the same name, so the index needs to be rebuilt
+		if(duplicateNames){
+			childIndex = null;
+		}
+		else{
+			childIndex.remove(child.name);
+		}
+	}
+
 	/**
 	 * Add a datatype to the list
 	 * @param type The datatype to add to the list for this variable.
@@ -310,18 +373,15 @@ public class Element implements Comparable {
 				type = TYPE_UNKNOWN;
 		}
 
-		addDatatype(new Integer(type));
+		addDatatypeCode(type);
 	}
 
 	/**
-	 * Add a datatype to the list
-	 * @param type The datatype to add to the list for this variable.
+	 * Add a datatype code to the list
+	 * @param type The datatype code (TYPE_*) to add to the list for this variable.
 	 */
-	private void addDatatype(Integer type){
-
-		if(!datatypes.contains(type)){
-			datatypes.add(type);
-		}
+	void addDatatypeCode(int type){
+		datatypes |= datatypeBit(type);
 	}
 
 	/**
@@ -329,8 +389,8 @@ public class Element implements Comparable {
 	 */
 	public int getDatatype(){
 
-		if(datatypes.size() == 1){
-			return datatypes.get(0).intValue();
+		if(Integer.bitCount(datatypes) == 1){
+			return datatypeCode(Integer.numberOfTrailingZeros(datatypes));
 		}
 		return TYPE_UNKNOWN;
 	}
@@ -339,13 +399,58 @@ public class Element implements Comparable {
 	 * Get the datatypes which were assigned to this element
 	 */
 	public int[] getDatatypes(){
-		int[] types = new int[datatypes.size()];
-		for(int i = 0; i < datatypes.size(); i++){
-			types[i] = datatypes.get(0).intValue();
+		int[] types = new int[Integer.bitCount(datatypes)];
+		int bits = datatypes;
+		for(int i = 0; i < types.length; i++){
+			types[i] = datatypeCode(Integer.numberOfTrailingZeros(bits));
+			bits &= bits - 1;
 		}
 		return types;
 	}
 
+	/**
+	 * Get the bit of a datatype code in the datatypes bitset
+	 */
+	private static int datatypeBit(int type){
+		if(type < TYPE_NULL || type > TYPE_REGEXP){
+			return 1 << (TYPE_REGEXP - TYPE_NULL + 1);
+		}
+		return 1 << (type - TYPE_NULL);
+	}
+
+	/**
+	 * Get the datatype code of a bit index in the datatypes bitset
+	 */
+	private static int datatypeCode(int bit){
+		if(bit > TYPE_REGEXP - TYPE_NULL){
+			return TYPE_UNKNOWN;
+		}
+		return TYPE_NULL + bit;
+	}
+
+	/**
+	 * Free what was only needed to build the tree, once the file has been parsed:
+	 * the Rhino parse tree, the name indexes of the children, the returned object literals
+	 * and the unused room in the child lists.  The names are interned, so all the files share them.
+	 */
+	public void compact(){
+		if(name != null){
+			name = name.intern();
+		}
+		node = null;
+		childIndex = null;
+		duplicateNames = false;
+		objReturns = null;
+		children.trimToSize();
+
+		for(int i = 0; i < params.length; i++){
+			params[i].compact();
+		}
+		for(int i = 0; i < children.size(); i++){
+			children.get(i).compact();
+		}
+	}
+
 	/**
 	 * Orders the children by line number and set the siblings
 	 */
@@ -377,6 +482,7 @@ public class Element implements Comparable {
 
 		ArrayList<Element> newList = new ArrayList(Arrays.asList(list));
 		children = newList;
+		childIndex = null;
 
 		// Fix the child and sibling associations
 		Element child;
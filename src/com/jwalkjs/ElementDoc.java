@@ -32,6 +32,14 @@ public class ElementDoc {
 	private Hashtable<String,Scriptable> params = null;
 	private Scriptable scope;
 
+	// The sorted children of each symbol, kept once the doc is frozen
+	private boolean frozen = false;
+	private Object[][] sortedChildren = null;
+
+	// The name in lower case, for sorting
+	private String sortKey = null;
+	private String sortKeyName = null;
+
 	/**
 	 * Extract the meta from the JS element into this ElementMeta object
 	 */
@@ -148,8 +156,27 @@ public class ElementDoc {
 	 * Gets all the parameters for this function/method
 	 */
 	public Object getParams(){
-		Object[] list = params.values().toArray();
-		return Context.javaToJS(list, this.scope);
+		return params.values().toArray();
+	}
+
+	/**
+	 * Stop the list of children from changing, so the sorted lists can be kept and returned again.
+	 * Called once the comment parser is done with the file, before the templates run.
+	 */
+	public synchronized void freeze(){
+		frozen = true;
+	}
+
+	/**
+	 * Get the name in lower case, which the docs are sorted by.  Anonymous elements have an empty key.
+	 */
+	public String getSortKey(){
+		String name = this.name;
+		if( sortKey == null || sortKeyName != name ){
+			sortKeyName = name;
+			sortKey = (name == null) ? "" : name.toLowerCase();
+		}
+		return sortKey;
 	}
 
 	/**
@@ -163,10 +190,18 @@ public class ElementDoc {
 	/**
 	 * Get all the children of a specific type (i.e. Funciton, Variable, etc)
 	 * defined under this one.
-	 * This is really only appilcable for Objects, Functions and Methods
+	 * This is really only appilcable for Objects, Functions and Methods.
+	 * Once the doc is frozen, the sorted array is kept, and each call returns a copy of it.
 	 * @param type The element type FUNCTION, VARIABLE, OBJECT etc.
 	 */
-	public Object getChildren(int symbol){
+	public synchronized Object getChildren(int symbol){
+		if( symbol != 0 && (symbol < FUNCTION || symbol > METHOD) ){
+			return new Object[0];
+		}
+		if( sortedChildren != null && sortedChildren[symbol] != null ){
+			return sortedChildren[symbol].clone();
+		}
+
 		ArrayList<ElementDoc> children = new ArrayList<ElementDoc>();
 
 		// Build array of children
@@ -181,7 +216,16 @@ public class ElementDoc {
 		// Sort by name
 		Collections.sort(children, new ListCompare());
 
-		return Context.javaToJS(children.toArray(), this.scope);
+		// Wrapped by the calling script's context, so it can be used from any thread
+		Object[] sorted = children.toArray();
+		if( frozen ){
+			if( sortedChildren == null ){
+				sortedChildren = new Object[METHOD + 1][];
+			}
+			sortedChildren[symbol] = sorted;
+			return sorted.clone();
+		}
+		return sorted;
 	}
 
 	/**
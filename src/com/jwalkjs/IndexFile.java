@@ -0,0 +1,338 @@
+package com.jwalkjs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A symbol index saved to disk, which can be searched without parsing anything.
+ *
+ * The file is memory mapped and looked up in place.  Its layout is:
+ *   int magic, int version
+ *   int file count, then for each file: UTF path, long length, long last modified
+ *   int symbol count, then an int offset for each symbol record, sorted by name
+ *   the symbol records: short name length, UTF-8 name, byte type, byte implicit, int file, int line
+ *
+ * Since the records are sorted by name, exact and prefix lookups are binary searches.
+ * When an index is updated, the symbols of files that weren't parsed this time are kept,
+ * as long as the files haven't changed since they were indexed.
+ */
+public class IndexFile {
+
+	private static final int MAGIC = 0x4A57495A;
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * A symbol in the index
+	 */
+	public static class Entry {
+		public String name;
+		public int type;
+		public boolean implicit;
+		public String path;
+		public int lineno;
+
+		public Entry(String name, int type, boolean implicit, String path, int lineno){
+			this.name = name;
+			this.type = type;
+			this.implicit = implicit;
+			this.path = path;
+			this.lineno = lineno;
+		}
+
+		/**
+		 * Get the name of the element type
+		 */
+		public String getTypeName(){
+			switch( type ){
+			case Element.FUNC:
+				return "function";
+			case Element.VAR:
+				return "variable";
+			case Element.OBJ:
+				return "object";
+			case Element.PROP:
+				return "property";
+			case Element.METHOD:
+				return "method";
+			}
+			return "unknown";
+		}
+	}
+
+	private ByteBuffer data;
+	private String[] paths;
+	private long[] lengths;
+	private long[] modified;
+	private int count;
+	private int offsetTable;
+
+	/**
+	 * Open an index file
+	 * @param file The index file
+	 */
+	public IndexFile(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			in.close();
+		}
+
+		try {
+			if( data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION ){
+				throw new IOException("'"+ file.getPath() +"' is not a JWalk index file, or it was written by another version.");
+			}
+
+			// File table
+			int files = data.getInt();
+			paths = new String[files];
+			lengths = new long[files];
+			modified = new long[files];
+			for( int i = 0; i < files; i++ ){
+				paths[i] = readUTF(data);
+				lengths[i] = data.getLong();
+				modified[i] = data.getLong();
+			}
+
+			count = data.getInt();
+			offsetTable = data.position();
+		} catch( RuntimeException ex ){
+			throw new IOException("The index file '"+ file.getPath() +"' is corrupt.");
+		}
+	}
+
+	/**
+	 * The number of symbols in the index
+	 */
+	public int size(){
+		return count;
+	}
+
+	/**
+	 * Find all the definitions of a name
+	 * @param name The global name or dotted object chain
+	 */
+	public List<Entry> find(String name){
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		for( int i = lowerBound(name); i < count && getName(i).equals(name); i++ ){
+			found.add(getEntry(i));
+		}
+		return found;
+	}
+
+	/**
+	 * Find all the symbols that start with a prefix
+	 * @param prefix The start of the name
+	 * @param limit The most entries to return, or 0 for all of them
+	 */
+	public List<Entry> findPrefix(String prefix, int limit){
+		ArrayList<Entry> found = new ArrayList<Entry>();
+		for( int i = lowerBound(prefix); i < count && getName(i).startsWith(prefix); i++ ){
+			if( limit > 0 && found.size() >= limit ){
+				break;
+			}
+			found.add(getEntry(i));
+		}
+		return found;
+	}
+
+	/**
+	 * Get the first symbol record that isn't less than the key
+	 */
+	private int lowerBound(String key){
+		int low = 0, high = count;
+		while( low < high ){
+			int mid = (low + high) >>> 1;
+			if( getName(mid).compareTo(key) < 0 ){
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Read the name of a symbol record
+	 */
+	private String getName(int index){
+		ByteBuffer record = data.duplicate();
+		record.position( data.getInt(offsetTable + index * 4) );
+		return readUTF(record);
+	}
+
+	/**
+	 * Read a symbol record
+	 */
+	private Entry getEntry(int index){
+		ByteBuffer record = data.duplicate();
+		record.position( data.getInt(offsetTable + index * 4) );
+		String name = readUTF(record);
+		int type = record.get();
+		boolean implicit = (record.get() != 0);
+		String path = paths[ record.getInt() ];
+		return new Entry(name, type, implicit, path, record.getInt());
+	}
+
+	/**
+	 * Read a string written by writeUTF
+	 */
+	private static String readUTF(ByteBuffer buffer){
+		byte[] bytes = new byte[ buffer.getShort() & 0xFFFF ];
+		buffer.get(bytes);
+		return new String(bytes, ScriptFile.DEFAULT_CHARSET);
+	}
+
+	/**
+	 * Write a string with a short length
+	 */
+	private static void writeUTF(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(ScriptFile.DEFAULT_CHARSET);
+		if( bytes.length > 0xFFFF ){
+			throw new IOException("The name '"+ str.substring(0, 40) +"...' is too long for the index.");
+		}
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Save a symbol index to an index file.
+	 * If the index file already exists, the symbols of files that aren't in the symbol index are kept,
+	 * unless the files have been changed or removed since.
+	 * @param file The index file
+	 * @param symbols The symbols of the files that were just parsed
+	 */
+	public static void update(File file, SymbolIndex symbols) throws IOException {
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+		ArrayList<String> files = new ArrayList<String>();
+
+		// New symbols
+		String[] parsed = symbols.getPaths();
+		HashSet<String> replaced = new HashSet<String>();
+		for( int i = 0; i < parsed.length; i++ ){
+			String path = SourcePaths.resolve(parsed[i]).getAbsolutePath();
+			replaced.add(path);
+			files.add(path);
+
+			SymbolIndex.Symbol[] defs = symbols.getSymbols(parsed[i]);
+			for( int n = 0; n < defs.length; n++ ){
+				entries.add( new Entry(defs[n].name, defs[n].type, defs[n].implicit, path, defs[n].lineno) );
+			}
+		}
+
+		// Keep the unchanged files of the old index
+		if( file.exists() ){
+			IndexFile old = null;
+			try {
+				old = new IndexFile(file);
+			} catch( IOException ex ){
+				// Start over
+			}
+
+			if( old != null ){
+				HashSet<String> kept = new HashSet<String>();
+				for( int i = 0; i < old.paths.length; i++ ){
+					File source = new File(old.paths[i]);
+					if( !replaced.contains(old.paths[i]) && source.length() == old.lengths[i] && source.lastModified() == old.modified[i] ){
+						kept.add(old.paths[i]);
+						files.add(old.paths[i]);
+					}
+				}
+				for( int i = 0; i < old.count; i++ ){
+					Entry entry = old.getEntry(i);
+					if( kept.contains(entry.path) ){
+						entries.add(entry);
+					}
+				}
+			}
+		}
+
+		write(file, files, entries);
+	}
+
+	/**
+	 * Write the index file
+	 */
+	private static void write(File file, List<String> files, List<Entry> entries) throws IOException {
+
+		// Sort by name, then file and line
+		Collections.sort(entries, new Comparator<Entry>(){
+			public int compare(Entry a, Entry b){
+				int diff = a.name.compareTo(b.name);
+				if( diff == 0 ){
+					diff = a.path.compareTo(b.path);
+				}
+				if( diff == 0 ){
+					diff = a.lineno - b.lineno;
+				}
+				return diff;
+			}
+		});
+
+		HashMap<String, Integer> fileIds = new HashMap<String, Integer>();
+		for( int i = 0; i < files.size(); i++ ){
+			fileIds.put(files.get(i), i);
+		}
+
+		File temp = new File(file.getPath() +".tmp");
+		File dir = file.getAbsoluteFile().getParentFile();
+		if( dir != null && !dir.exists() ){
+			dir.mkdirs();
+		}
+
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(temp), 65536 ) );
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+
+			// File table
+			out.writeInt(files.size());
+			for( int i = 0; i < files.size(); i++ ){
+				File source = new File(files.get(i));
+				writeUTF(out, files.get(i));
+				out.writeLong(source.length());
+				out.writeLong(source.lastModified());
+			}
+
+			// Offset table, the records start right after it
+			out.writeInt(entries.size());
+			int offset = out.size() + entries.size() * 4;
+			for( int i = 0; i < entries.size(); i++ ){
+				out.writeInt(offset);
+				offset += 2 + entries.get(i).name.getBytes(ScriptFile.DEFAULT_CHARSET).length + 1 + 1 + 4 + 4;
+			}
+
+			// Records
+			Entry entry;
+			for( int i = 0; i < entries.size(); i++ ){
+				entry = entries.get(i);
+				writeUTF(out, entry.name);
+				out.writeByte(entry.type);
+				out.writeByte(entry.implicit ? 1 : 0);
+				out.writeInt(fileIds.get(entry.path));
+				out.writeInt(entry.lineno);
+			}
+		} finally {
+			out.close();
+		}
+
+		// Replace the old index
+		if( (file.exists() && !file.delete()) || !temp.renameTo(file) ){
+			temp.delete();
+			throw new IOException("Could not write the index file '"+ file.getPath() +"'.");
+		}
+	}
+}
@@ -2,17 +2,38 @@ package com.jwalkjs;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class InspectFile implements FilenameFilter {
 
 	private static String format = "raw";
-	private static File currentFile = null;
-	private static String currentType = "";
+	private static int threads = 1;
+	private static InspectSink sink = null;
+	private static SymbolIndex symbols = null;
+	private static File indexFile = null;
+	private static boolean watch = false;
 	private static FilenameFilter fileFilter = (FilenameFilter)new InspectFile();
 	private static ArrayList<File> excludeList = new ArrayList();
 
+	/**
+	 * The parser session for each inspection thread
+	 */
+	private final static ThreadLocal<JWalkParser> sessions = new ThreadLocal<JWalkParser>(){
+		protected JWalkParser initialValue(){
+			return new JWalkParser();
+		}
+	};
+
 	public static void main(String[] args)
 		throws java.io.FileNotFoundException, java.io.IOException {
 
@@ -21,11 +42,19 @@ public class InspectFile implements FilenameFilter {
 			return;
 		}
 
+		// Start from the defaults, this can run more than once in a resident server
 		format = "raw";
+		threads = 1;
+		sink = null;
+		symbols = null;
+		indexFile = null;
+		watch = false;
+		excludeList.clear();
 		boolean recursive = false;
 
 		// Get all files
 		ArrayList<File> fileList = new ArrayList();
+		ArrayList<File> watchList = new ArrayList<File>();
 		ArrayList<File> addTo = fileList;
 		for(int index = 0; index < args.length; index++){
 
@@ -39,6 +68,36 @@ public class InspectFile implements FilenameFilter {
 				continue;
 			}
 
+			if(args[index].equals("-json")){
+				format = "json";
+				continue;
+			}
+
+			if(args[index].equals("-binary")){
+				format = "binary";
+				continue;
+			}
+
+			if(args[index].equals("-watch") || args[index].equals("--watch")){
+				watch = true;
+				continue;
+			}
+
+			if(args[index].equals("-index") && index + 1 < args.length){
+				indexFile = new File(args[++index]);
+				continue;
+			}
+
+			if(args[index].equals("-j") && index + 1 < args.length){
+				try {
+					threads = Math.max(1, Integer.parseInt(args[++index]));
+				} catch( NumberFormatException ex ){
+					System.err.println("'"+ args[index] +"' is not a valid number of threads.");
+					return;
+				}
+				continue;
+			}
+
 			// The rest are excludes
 			if(args[index].equals("-e")){
 				addTo = excludeList;
@@ -50,6 +109,10 @@ public class InspectFile implements FilenameFilter {
 			File file = new File(path);
 			if(file.exists()){
 
+				if(addTo != excludeList){
+					watchList.add(file);
+				}
+
 				if(file.isDirectory() && addTo != excludeList){
 					addTo.addAll(Arrays.asList(file.listFiles(fileFilter)));
 				}
@@ -58,7 +121,7 @@ public class InspectFile implements FilenameFilter {
 				}
 			}
 			else{
-				System.out.println("WARNING: The file or directory '"+ args[index] +"' does not exist. SKIPPING FILE");
+				System.err.println("WARNING: The file or directory '"+ args[index] +"' does not exist. SKIPPING FILE");
 			}
 		}
 
@@ -66,8 +129,32 @@ public class InspectFile implements FilenameFilter {
 			printUsage();
 		}
 		else{
-			printCsvHeader();
-			inspect( fileList.toArray(new File[fileList.size()]), recursive);
+			SourceWatcher watcher = null;
+			if(watch){
+				watcher = new SourceWatcher(watchList.toArray(new File[watchList.size()]), recursive);
+			}
+
+			sink = InspectSink.create(format);
+			if(indexFile != null){
+				symbols = new SymbolIndex();
+			}
+			try {
+				inspect( fileList.toArray(new File[fileList.size()]), recursive);
+
+				// Save the symbols of the inspected files
+				if(symbols != null){
+					IndexFile.update(indexFile, symbols);
+				}
+
+				if(watcher != null){
+					sink.flush();
+					watchFiles(watcher);
+				}
+			} finally {
+				sink.close();
+				sink = null;
+				symbols = null;
+			}
 		}
 	}
 
@@ -85,9 +172,15 @@ public class InspectFile implements FilenameFilter {
 	private static void printUsage(){
 		StringBuffer out = new StringBuffer();
 		out.append("\nPrints all functions, variables and objects in a JavaScript file.\n\n");
-		out.append("usage: jwalk inspect [-r] [-csv] path [path path] [-e path path]\n");
+		out.append("usage: jwalk inspect [-r] [-csv|-json|-binary] [-index file] [-j threads] [-watch] path [path path] [-e path path]\n");
 		out.append("    -r       : Parse directories recursively\n");
 		out.append("    -csv     : Output data in CSV format\n");
+		out.append("    -json    : Output data as JSON Lines, one object per element\n");
+		out.append("    -binary  : Output data as compact binary records (see InspectSink)\n");
+		out.append("    -watch   : Keep running and inspect files again when they change\n");
+		out.append("    -index   : Add the symbols to an index file, for 'jwalk query'\n");
+		out.append("    -j       : The number of files to inspect at once. Files are output in the\n");
+		out.append("               order they finish when this is more than 1.\n");
 		out.append("    path     : The file or directory to inspect.\n");
 		out.append("               Passing a directory will parse all the JavaScript files contained within it.\n");
 		out.append("    -e path  : Files and directories to exclude.\n");
@@ -118,12 +211,131 @@ public class InspectFile implements FilenameFilter {
 	public static void inspect(File[] files, boolean recursive, String root)
 		throws java.io.FileNotFoundException, java.io.IOException {
 
+		// Print the tables if there's no sink set up
+		if(sink == null){
+			sink = InspectSink.create(format);
+			try {
+				inspect(files, recursive, root);
+			} finally {
+				sink.close();
+				sink = null;
+			}
+			return;
+		}
+
+		ArrayList<File> found = new ArrayList<File>();
+		findFiles(files, recursive, found);
+
+		if(threads <= 1){
+			for(int i = 0; i < found.size(); i++){
+				inspectFile(found.get(i));
+			}
+			return;
+		}
+
+		// Inspect several files at once, each thread writes its files to the sink as they finish
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Object>> pending = new ArrayList<Future<Object>>(found.size());
+			for(int i = 0; i < found.size(); i++){
+				final File file = found.get(i);
+				pending.add( executor.submit(new Callable<Object>(){
+					public Object call() throws IOException {
+						inspectFile(file);
+						return null;
+					}
+				}) );
+			}
+
+			for(int i = 0; i < pending.size(); i++){
+				pending.get(i).get();
+			}
+		} catch( InterruptedException ex ){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while inspecting files");
+		} catch( ExecutionException ex ){
+			Throwable cause = ex.getCause();
+			if( cause instanceof IOException ){
+				throw (IOException)cause;
+			} else if( cause instanceof RuntimeException ){
+				throw (RuntimeException)cause;
+			} else if( cause instanceof Error ){
+				throw (Error)cause;
+			}
+			throw new IOException(cause.getMessage());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Inspect files again as they change, until the process is stopped
+	 * @param watcher Watches the files that were inspected
+	 */
+	private static void watchFiles(SourceWatcher watcher) throws IOException {
+		while(true){
+			SourceWatcher.Changes changes;
+			try {
+				changes = watcher.next();
+			} catch( InterruptedException ex ){
+				return;
+			}
+
+			if(symbols != null){
+				symbols = new SymbolIndex();
+			}
+
+			Iterator<File> iter = changes.deleted.iterator();
+			while(iter.hasNext()){
+				System.err.println("Removed: "+ iter.next().getPath());
+			}
+
+			iter = changes.changed.iterator();
+			File file;
+			while(iter.hasNext()){
+				file = iter.next();
+				if(file.exists() && !isExcluded(file)){
+					try {
+						inspectFile(file);
+					} catch( IOException ex ){
+						System.err.println("Could not read or process the file '"+ file.getPath() +"'");
+					}
+				}
+			}
+			sink.flush();
+
+			// Replace the changed files in the index, and drop the deleted ones
+			if(symbols != null){
+				IndexFile.update(indexFile, symbols);
+			}
+		}
+	}
+
+	/**
+	 * Check if a file, or one of its directories, was excluded with -e
+	 */
+	private static boolean isExcluded(File file){
+		for(int i = 0; i < excludeList.size(); i++){
+			File exclude = excludeList.get(i).getAbsoluteFile();
+			for(File dir = file.getAbsoluteFile(); dir != null; dir = dir.getParentFile()){
+				if(dir.equals(exclude)){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
 
-		String path;
+	/**
+	 * Build the list of files to inspect
+	 * @param files The files and directories passed in
+	 * @param recursive Go into sub directories
+	 * @param found The list the JS files are added to
+	 */
+	private static void findFiles(File[] files, boolean recursive, List<File> found){
 		File file;
 		for(int i = 0; i < files.length; i++){
 			file = files[i];
-			path = file.getPath();
 
 			// Exclude this file
 			if(excludeList.contains(file)){
@@ -133,47 +345,50 @@ public class InspectFile implements FilenameFilter {
 			// Directory
 			if(file.isDirectory()){
 				if(recursive){
-					inspect(file.listFiles(fileFilter), recursive);
+					findFiles(file.listFiles(fileFilter), recursive, found);
 				}
 				continue;
 			}
 
-			if(format != "csv"){
-				System.out.println("\nInspecting: "+ path);
-			}
-
-			currentFile = file;
-			ScriptFile script = JWalkParser.parseFile(path);
-			Element elem = script.global.element;
-			Element[] children = elem.getChildren();
-
-			if(format != "csv"){
-				System.out.println(elem.children.size() +" global elements");
-			}
+			found.add(file);
+		}
+	}
 
-			inspectElementList(children);
+	/**
+	 * Inspect a single file and write the results to the sink
+	 * @param file The JS file
+	 */
+	private static void inspectFile(File file) throws IOException {
+		ScriptFile script = sessions.get().parse(file, false);
+		if(symbols != null){
+			symbols.add(script);
 		}
+		Element elem = script.root;
+		Element[] children = elem.getChildren();
 
+		ArrayList<InspectSink.Row> rows = new ArrayList<InspectSink.Row>();
+		inspectElementList(children, rows);
+
+		sink.write(file, elem.children.size(), rows);
 	}
 
 	/**
-	 * Print the details for each element in the list
+	 * Add the details for each element in the list
 	 * @param elems
+	 * @param rows The list the results are added to
 	 */
-	public static void inspectElementList(Element[] elems){
-		printVariables(elems);
-		printObjects(elems);
-		printFunctions(elems);
+	public static void inspectElementList(Element[] elems, List<InspectSink.Row> rows){
+		printVariables(elems, rows);
+		printObjects(elems, rows);
+		printFunctions(elems, rows);
 	}
 
 	/**
-	 * Print the global variables in the element list.
+	 * Add the global variables in the element list.
 	 * @param elem
+	 * @param rows The list the results are added to
 	 */
-	public static void printVariables(Element[] elems){
-		printColumnHeaders("Variables");
-		currentType = "variable";
-
+	public static void printVariables(Element[] elems, List<InspectSink.Row> rows){
 		Element elem;
 		String notes;
 		for(int i = 0; i < elems.length; i++){
@@ -186,40 +401,36 @@ public class InspectFile implements FilenameFilter {
 					notes += "!!! Implicit global !!!";
 				}
 
-				printRow(elem.name, elem.lineno, notes);
+				rows.add(new InspectSink.Row("variable", elem.name, elem.lineno, notes));
 			}
 
 		}
-		printRowSeparator();
 	}
 
 	/**
-	 * Print the functions in the element list.
+	 * Add the functions in the element list.
 	 * @param elem
+	 * @param rows The list the results are added to
 	 */
-	public static void printFunctions(Element[] elems){
-		printColumnHeaders("Functions");
-		currentType = "function";
-
+	public static void printFunctions(Element[] elems, List<InspectSink.Row> rows){
 		Element elem;
-		String notes;
 		for(int i = 0; i < elems.length; i++){
 			elem = elems[i];
 
 			if(elem.type == Element.FUNC || elem.type == Element.METHOD){
-				printFunction(elem);
+				printFunction(elem, rows);
 			}
-			printNestedFunctions(elem);
+			printNestedFunctions(elem, rows);
 		}
-		printRowSeparator();
 
 	}
 
 	/**
-	 * Print the details of a single function
+	 * Add the details of a single function
 	 * @param elem
+	 * @param rows The list the results are added to
 	 */
-	public static void printFunction(Element elem){
+	public static void printFunction(Element elem, List<InspectSink.Row> rows){
 		String notes = "";
 
 		if(elem.type == Element.FUNC || elem.type == Element.METHOD){
@@ -254,15 +465,16 @@ public class InspectFile implements FilenameFilter {
 				}
 			}
 
-			printRow(elem.name, elem.lineno, notes);
+			rows.add(new InspectSink.Row("function", elem.name, elem.lineno, notes));
 		}
 	}
 
 	/**
-	 * Print any nested functions of this element
+	 * Add any nested functions of this element
 	 * @param elem
+	 * @param rows The list the results are added to
 	 */
-	public static void printNestedFunctions(Element elem){
+	public static void printNestedFunctions(Element elem, List<InspectSink.Row> rows){
 
 		// Only go into anonymous functions at the global scope
 		if(elem.anonymous && elem.scope != elem.top){
@@ -271,46 +483,41 @@ public class InspectFile implements FilenameFilter {
 
 		// Read functions
 		Element[] elems = elem.getChildren();
-		String notes;
 		for(int i = 0; i < elems.length; i++){
 			elem = elems[i];
-			notes = "";
 
 			if(elem.type == Element.FUNC || elem.type == Element.METHOD){
-				printFunction(elem);
+				printFunction(elem, rows);
 			}
 			else if(elem.constructor || elem.type == Element.OBJ){
-				printNestedFunctions(elem);
+				printNestedFunctions(elem, rows);
 			}
 
 		}
 	}
 
 	/**
-	 * Print the Objects in the element list.
+	 * Add the Objects in the element list.
 	 * @param elem
+	 * @param rows The list the results are added to
 	 */
-	public static void printObjects(Element[] elems){
-		printColumnHeaders("Objects");
-		currentType = "object";
-
+	public static void printObjects(Element[] elems, List<InspectSink.Row> rows){
 		Element elem;
-		String notes;
 		for(int i = 0; i < elems.length; i++){
 			elem = elems[i];
 
 			if(elem.type == Element.OBJ){
-				printObject(elem);
+				printObject(elem, rows);
 			}
 		}
-		printRowSeparator();
 	}
 
 	/**
-	 * Print the details of all the child objects of this object
+	 * Add the details of all the child objects of this object
 	 * @param elem
+	 * @param rows The list the results are added to
 	 */
-	public static void printObject(Element elem){
+	public static void printObject(Element elem, List<InspectSink.Row> rows){
 		int objCount = 0;
 		String notes = "";
 
@@ -322,7 +529,7 @@ public class InspectFile implements FilenameFilter {
 
 			if(child.type == Element.OBJ){
 				objCount++;
-				printObject(child);
+				printObject(child, rows);
 			}
 		}
 
@@ -335,7 +542,7 @@ public class InspectFile implements FilenameFilter {
 				notes += "cloaked";
 			}
 
-			printRow(getObjectChain(elem), elem.lineno, notes);
+			rows.add(new InspectSink.Row("object", getObjectChain(elem), elem.lineno, notes));
 		}
 
 	}
@@ -354,70 +561,4 @@ public class InspectFile implements FilenameFilter {
 		return chain;
 	}
 
-	/**
-	 * Print header for CSV file
-	 */
-	public static void printCsvHeader(){
-		if(format == "csv"){
-			System.out.println("Type,Name,Notes,Line,File");
-		}
-	}
-
-	/**
-	 * Print the column headers
-	 */
-	public static void printColumnHeaders(String name){
-
-		if(format == "csv"){
-			return;
-		}
-
-		int width = 129;
-
-		// Create header title
-		String title = "\n\t+--------------- "+ name +" ";
-		int remainin = width - title.length();
-		for(int i = 0; i < remainin; i++){
-			title += "-";
-		}
-		title += "+";
-
-		System.out.println(title);
-		System.out.format("\t| %-50s|%-8s|%-65s|\n", "Name", "  Line  ", " Notes");
-		printRowSeparator();
-	}
-
-	/**
-	 * Print the table row separator line
-	 */
-	public static void printRowSeparator(){
-		if(format != "csv"){
-			System.out.format("\t+%s+%s+%s+\n", "---------------------------------------------------", "--------", "-----------------------------------------------------------------");
-		}
-	}
-
-	/**
-	 * Print a row of information
-	 * @param name
-	 * @param lineno
-	 */
-	public static void printRow(String name, int lineno){
-		printRow(name, lineno, "");
-	}
-
-	/**
-	 * Print a row of information
-	 * @param name
-	 * @param lineno
-	 * @param notes
-	 */
-	public static void printRow(String name, int lineno, String notes){
-		if(format == "csv"){
-			System.out.format("%s,%s,\"%s\",%d,%s\n", currentType, name, notes, lineno, currentFile.getPath());
-		}
-		else{
-			System.out.format("\t| %-50s|%7d | %-64s|\n", name, lineno, notes);
-		}
-	}
-
 }
@@ -0,0 +1,368 @@
+package com.jwalkjs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Where the results of 'jwalk inspect' are written to.
+ *
+ * All the rows of a file are written in one call, so a sink can be shared by
+ * parallel inspection threads without the files getting mixed together.
+ * The output is buffered and only flushed when the sink is closed.
+ *
+ * Formats:
+ *   raw    - The text tables, for people
+ *   csv    - One row per element: Type,Name,Notes,Line,File
+ *   json   - JSON Lines, one object per element:
+ *            {"file":"a.js","type":"function","name":"foo","line":12,"notes":"cloaked"}
+ *   binary - A "JWIN" header and format version byte (2), followed by records written with
+ *            DataOutputStream, so the numbers are big-endian.  A file record (byte 1, string path,
+ *            int global element count) is followed by an element record (byte 2, byte type,
+ *            string name, int line, string notes) for each of its rows.  Each string is an int
+ *            byte length followed by that many bytes of UTF-8.  The types are 0 variable,
+ *            1 object and 2 function.
+ */
+public abstract class InspectSink {
+
+	private static final int BUFFER_SIZE = 65536;
+
+	protected OutputStream out;
+
+	/**
+	 * A single element in the inspection results
+	 */
+	public static class Row {
+		public String type;
+		public String name;
+		public int lineno;
+		public String notes;
+
+		public Row(String type, String name, int lineno, String notes){
+			this.type = type;
+			this.name = String.valueOf(name);
+			this.lineno = lineno;
+			this.notes = notes;
+		}
+	}
+
+	/**
+	 * Create a sink that writes to System.out
+	 * @param format The output format: raw, csv, json or binary
+	 */
+	public static InspectSink create(String format) throws IOException {
+		return create(format, Channels.newChannel(System.out));
+	}
+
+	/**
+	 * Create a sink
+	 * @param format The output format: raw, csv, json or binary
+	 * @param channel The channel to write to
+	 */
+	public static InspectSink create(String format, WritableByteChannel channel) throws IOException {
+		OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+
+		InspectSink sink;
+		if( format.equals("csv") ){
+			sink = new CsvSink(out);
+		} else if( format.equals("json") ){
+			sink = new JsonSink(out);
+		} else if( format.equals("binary") ){
+			sink = new BinarySink(out);
+		} else if( format.equals("raw") ){
+			sink = new TableSink(out);
+		} else {
+			throw new IllegalArgumentException("'"+ format +"' is not an inspect output format.");
+		}
+
+		sink.begin();
+		return sink;
+	}
+
+	protected InspectSink(OutputStream out){
+		this.out = out;
+	}
+
+	/**
+	 * Write the results of one file
+	 * @param file The file that was inspected
+	 * @param globalCount The number of global elements in the file
+	 * @param rows The elements in the file
+	 */
+	public synchronized void write(File file, int globalCount, List<Row> rows) throws IOException {
+		writeFile(file, globalCount, rows);
+	}
+
+	/**
+	 * Write out everything that's buffered
+	 */
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Flush all the output and close the sink
+	 */
+	public synchronized void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Write anything that comes before the results, like a header
+	 */
+	protected void begin() throws IOException {
+	}
+
+	/**
+	 * Format the results of one file
+	 */
+	protected abstract void writeFile(File file, int globalCount, List<Row> rows) throws IOException;
+
+	/**
+	 * Writes text to the output
+	 */
+	private static abstract class TextSink extends InspectSink {
+		protected Writer writer;
+
+		TextSink(OutputStream out){
+			super(out);
+			writer = new OutputStreamWriter(out, ScriptFile.DEFAULT_CHARSET);
+		}
+
+		public synchronized void flush() throws IOException {
+			writer.flush();
+			super.flush();
+		}
+	}
+
+	/**
+	 * The text tables
+	 */
+	private static class TableSink extends TextSink {
+		private static final String[] SECTIONS = { "Variables", "Objects", "Functions" };
+		private static final String[] TYPES = { "variable", "object", "function" };
+
+		TableSink(OutputStream out){
+			super(out);
+		}
+
+		protected void writeFile(File file, int globalCount, List<Row> rows) throws IOException {
+			writer.write("\nInspecting: "+ SourcePaths.display(file) +"\n");
+			writer.write(globalCount +" global elements\n");
+
+			Row row;
+			for(int s = 0; s < SECTIONS.length; s++){
+				writeColumnHeaders(SECTIONS[s]);
+				for(int i = 0; i < rows.size(); i++){
+					row = rows.get(i);
+					if(row.type.equals(TYPES[s])){
+						writer.write(String.format("\t| %-50s|%7d | %-64s|\n", row.name, row.lineno, row.notes));
+					}
+				}
+				writeRowSeparator();
+			}
+		}
+
+		/**
+		 * Write the column headers
+		 */
+		private void writeColumnHeaders(String name) throws IOException {
+			int width = 129;
+
+			// Create header title
+			StringBuilder title = new StringBuilder("\n\t+--------------- "+ name +" ");
+			while(title.length() < width){
+				title.append('-');
+			}
+			title.append("+\n");
+
+			writer.write(title.toString());
+			writer.write(String.format("\t| %-50s|%-8s|%-65s|\n", "Name", "  Line  ", " Notes"));
+			writeRowSeparator();
+		}
+
+		/**
+		 * Write the table row separator line
+		 */
+		private void writeRowSeparator() throws IOException {
+			writer.write("\t+---------------------------------------------------+--------+-----------------------------------------------------------------+\n");
+		}
+	}
+
+	/**
+	 * Comma separated values, with a header row
+	 */
+	private static class CsvSink extends TextSink {
+
+		CsvSink(OutputStream out){
+			super(out);
+		}
+
+		protected void begin() throws IOException {
+			writer.write("Type,Name,Notes,Line,File\n");
+		}
+
+		protected void writeFile(File file, int globalCount, List<Row> rows) throws IOException {
+			String path = escape(SourcePaths.display(file), false);
+			Row row;
+			for(int i = 0; i < rows.size(); i++){
+				row = rows.get(i);
+				writer.write(row.type);
+				writer.write(',');
+				writer.write(escape(row.name, false));
+				writer.write(',');
+				writer.write(escape(row.notes, true));
+				writer.write(',');
+				writer.write(Integer.toString(row.lineno));
+				writer.write(',');
+				writer.write(path);
+				writer.write('\n');
+			}
+		}
+
+		/**
+		 * Quote a value if it has commas, quotes or line breaks in it
+		 * @param value The value
+		 * @param always Always quote the value
+		 */
+		private static String escape(String value, boolean always){
+			boolean quote = always;
+			for(int i = 0; i < value.length() && !quote; i++){
+				char c = value.charAt(i);
+				quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+			}
+			if( !quote ){
+				return value;
+			}
+			return "\""+ value.replace("\"", "\"\"") +"\"";
+		}
+	}
+
+	/**
+	 * JSON Lines, one object for each element
+	 */
+	private static class JsonSink extends TextSink {
+		private StringBuilder line = new StringBuilder(256);
+
+		JsonSink(OutputStream out){
+			super(out);
+		}
+
+		protected void writeFile(File file, int globalCount, List<Row> rows) throws IOException {
+			String path = SourcePaths.display(file);
+			Row row;
+			for(int i = 0; i < rows.size(); i++){
+				row = rows.get(i);
+				line.setLength(0);
+				line.append("{\"file\":");
+				quote(path);
+				line.append(",\"type\":");
+				quote(row.type);
+				line.append(",\"name\":");
+				quote(row.name);
+				line.append(",\"line\":").append(row.lineno);
+				line.append(",\"notes\":");
+				quote(row.notes);
+				line.append("}\n");
+				writer.write(line.toString());
+			}
+		}
+
+		/**
+		 * Add a JSON string to the line
+		 */
+		private void quote(String value){
+			line.append('"');
+			char c;
+			for(int i = 0; i < value.length(); i++){
+				c = value.charAt(i);
+				switch( c ){
+				case '"':
+					line.append("\\\"");
+					break;
+				case '\\':
+					line.append("\\\\");
+					break;
+				case '\n':
+					line.append("\\n");
+					break;
+				case '\r':
+					line.append("\\r");
+					break;
+				case '\t':
+					line.append("\\t");
+					break;
+				default:
+					if( c < 0x20 ){
+						line.append(String.format("\\u%04x", (int)c));
+					} else {
+						line.append(c);
+					}
+				}
+			}
+			line.append('"');
+		}
+	}
+
+	/**
+	 * Compact binary records
+	 */
+	private static class BinarySink extends InspectSink {
+		private static final byte FORMAT_VERSION = 2;
+		private static final byte FILE_RECORD = 1;
+		private static final byte ELEMENT_RECORD = 2;
+
+		private DataOutputStream data;
+
+		BinarySink(OutputStream out){
+			super(out);
+			data = new DataOutputStream(out);
+		}
+
+		protected void begin() throws IOException {
+			data.writeBytes("JWIN");
+			data.writeByte(FORMAT_VERSION);
+		}
+
+		protected void writeFile(File file, int globalCount, List<Row> rows) throws IOException {
+			data.writeByte(FILE_RECORD);
+			writeString(SourcePaths.display(file));
+			data.writeInt(globalCount);
+
+			Row row;
+			for(int i = 0; i < rows.size(); i++){
+				row = rows.get(i);
+				data.writeByte(ELEMENT_RECORD);
+				data.writeByte(typeCode(row.type));
+				writeString(row.name);
+				data.writeInt(row.lineno);
+				writeString(row.notes);
+			}
+		}
+
+		/**
+		 * Write a string as its length and UTF-8 bytes, since writeUTF() can't write more than 64K
+		 */
+		private void writeString(String str) throws IOException {
+			byte[] bytes = str.getBytes(ScriptFile.DEFAULT_CHARSET);
+			data.writeInt(bytes.length);
+			data.write(bytes);
+		}
+
+		private static int typeCode(String type){
+			if( type.equals("variable") ){
+				return 0;
+			} else if( type.equals("object") ){
+				return 1;
+			}
+			return 2;
+		}
+	}
+}
@@ -10,8 +10,10 @@ import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptRuntime;
 import org.mozilla.javascript.ScriptableObject;
 import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Wrapper;
 
 public class JSHelpers {
 
@@ -26,12 +28,12 @@ public class JSHelpers {
 
 	/**
 	 * Load the helper methods into the JavaScript scope.
-	 * By default this loads the 'print', 'log' and 'include' functions.
+	 * By default this loads the 'print', 'printLiteral', 'log' and 'include' functions.
 	 * @param scope The JavaScript scope
 	 * @param include List of the non-default script functions to include
 	 */
 	protected static void load(ScriptableObject scope, String[] include) {
-		String[] defnames = { "print", "include", "log" };
+		String[] defnames = { "print", "printLiteral", "include", "log" };
 
 		scope.defineFunctionProperties(defnames, JSHelpers.class, ScriptableObject.DONTENUM);
 		scope.defineFunctionProperties(include, JSHelpers.class, ScriptableObject.DONTENUM);
@@ -60,8 +62,9 @@ public class JSHelpers {
 
 	/**
 	 * A JavaScript helper that prints to the output writer
-	 * Requires the 'output_writer' property to be set via scope.associateValue.
-	 * 		For example: scope.associateValue("output_writer", System.out);
+	 * The writer is set with the 'output_writer' property via scope.associateValue,
+	 * 		for example: scope.associateValue("output_writer", writer);
+	 * If it's not set, nothing is printed.  Use 'log' to print to System.out.
 	 */
 	public static void print(Context cx, Scriptable scope, Object[] args, Function funObj) throws Exception{
 		if( args.length == 0 ){
@@ -72,23 +75,45 @@ public class JSHelpers {
 		String content;
 		content = (String)Context.jsToJava((Object)args[0], String.class);
 
-		// Get writer and output
+		write(scope, content);
+	}
+
+	/**
+	 * Prints a literal text chunk of a compiled template to the output writer.
+	 * The template compiler generates these calls, with the template's literal table and the chunk index.
+	 */
+	public static void printLiteral(Context cx, Scriptable scope, Object[] args, Function funObj) throws Exception{
+		if( args.length < 2 ){
+			return;
+		}
+
+		Object table = args[0];
+		if( table instanceof Wrapper ){
+			table = ((Wrapper)table).unwrap();
+		}
+		write(scope, ((String[])table)[ ScriptRuntime.toInt32(args[1]) ]);
+	}
+
+	/**
+	 * Write content to the output writer
+	 * @param scope The scope with the 'output_writer' associated value
+	 * @param content The content to write
+	 */
+	private static void write(Scriptable scope, String content) throws Exception{
 		try {
-			OutputStream out = (OutputStream) getAssociatedValue(scope, "output_writer");
-			if( out != null ){
-
-				if( out instanceof PrintStream){
-					((PrintStream) out).println(content);
-				}
-				else{
-					out.write(content.getBytes());
-				}
-				out.flush();
+			Object out = getAssociatedValue(scope, "output_writer");
+			if( out instanceof Writer ){
+				((Writer) out).write(content);
+			}
+			else if( out instanceof PrintStream ){
+				((PrintStream) out).println(content);
+			}
+			else if( out instanceof OutputStream ){
+				((OutputStream) out).write(content.getBytes(ScriptFile.DEFAULT_CHARSET));
 			}
 		} catch (IOException ex){
 			throw new Exception("Could not find or access the output writer.");
 		}
-
 	}
 
 	/**
@@ -130,29 +155,20 @@ public class JSHelpers {
 			throw fileEx;
 		}
 
-		// Read file
-		StringBuilder contents = new StringBuilder();
-		BufferedReader input =  new BufferedReader( new FileReader(file) );
-		try{
-			String line;
-			while (( line = input.readLine()) != null){
-	          contents.append(line);
-	          contents.append(System.getProperty("line.separator"));
-	        }
+		// Compile, templates keep the compiled script until the file changes
+		Script script;
+		boolean isTemplate = !filePath.toLowerCase().matches("^.*?\\.js$");
+		try {
+			if( template != null ){
+				script = template.compile(file, isTemplate);
+			} else {
+				script = cx.compileString(Template.readFile(file), file.getPath(), 1, null);
+			}
 		} catch(IOException ex){
 			throw fileEx;
-		} finally{
-			input.close();
-		}
-
-		// Prepare source
-		String src = contents.toString();
-		if( template != null && !filePath.toLowerCase().matches("^.*?\\.js$") ){
-			src = template.convertTemplate(src);
 		}
 
 		// Execute
-		Script script = cx.compileString(src, file.getPath(), 1, null);
 		script.exec(cx, scope);
 	}
 
@@ -26,6 +26,12 @@ public class JWalk {
 		} else if(command.equals("tree")){
 			PrintTree.main(cmdArgs);
 			return;
+		} else if(command.equals("serve")){
+			JWalkServer.main(cmdArgs);
+			return;
+		} else if(command.equals("query")){
+			QueryIndex.main(cmdArgs);
+			return;
 		} else if(command.equals("doc")){
 			DocTool.main(cmdArgs);
 			return;
@@ -58,6 +64,8 @@ public class JWalk {
 		out.append("   inspect   : Prints a table of global elements for each file in the argument list.\n");
 		out.append("   tree      : Prints a hierarchy tree of JS elements in a file.\n");
 		out.append("   doc       : Runs the JavaScript files through the JWalk documentation engine.\n");
+		out.append("   query     : Finds where a symbol is defined, from an index written by inspect or doc.\n");
+		out.append("   serve     : Keeps JWalk running in the background, so commands start faster.\n");
 		out.append("   version   : Prints the JWalk version.\n");
 
 		System.out.println(out.toString());
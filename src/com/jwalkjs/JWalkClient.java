@@ -0,0 +1,127 @@
+package com.jwalkjs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Sends a command to the JWalk server (see JWalkServer), and runs it here if no server is running.
+ * This class doesn't load Rhino, so it starts as fast as the JVM does.
+ */
+public class JWalkClient {
+
+	private Socket socket;
+	private String token;
+
+	private JWalkClient(Socket socket, String token){
+		this.socket = socket;
+		this.token = token;
+	}
+
+	public static void main(String[] args) throws Exception {
+		JWalkClient client = connect();
+		if( client == null ){
+
+			// No server, run it here
+			JWalk.main(args);
+			return;
+		}
+
+		// Once the request is sent the server may have run it, so it's not run again here
+		int status;
+		try {
+			status = client.send(args);
+		} catch( IOException ex ){
+			System.err.println("\nThe connection to the JWalk server was lost before the command finished"
+					+ ((ex.getMessage() != null) ? ": "+ ex.getMessage() : "."));
+			status = 1;
+		}
+
+		if( status != 0 ){
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * Connect to the server
+	 * @return The connected client, or NULL if there's no server running
+	 */
+	public static JWalkClient connect(){
+		File serverFile = JWalkServer.getServerFile();
+		if( !serverFile.exists() ){
+			return null;
+		}
+
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(serverFile));
+			String[] info;
+			try {
+				String line = reader.readLine();
+				info = (line == null) ? new String[0] : line.trim().split(" ");
+			} finally {
+				reader.close();
+			}
+			if( info.length != 2 ){
+				return null;
+			}
+
+			Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), Integer.parseInt(info[0]));
+			return new JWalkClient(socket, info[1]);
+		} catch( IOException ex ){
+			return null;
+		} catch( NumberFormatException ex ){
+			return null;
+		}
+	}
+
+	/**
+	 * Send a command to the server and copy its output to System.out and System.err.
+	 * The connection is closed afterwards.
+	 * @param args The command and its arguments
+	 * @return The exit status of the command
+	 * @throws IOException If the connection fails while the command runs
+	 */
+	public int send(String[] args) throws IOException {
+		try {
+
+			// Request
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeUTF(JWalkServer.PROTOCOL);
+			out.writeUTF(token);
+			out.writeUTF(new File("").getAbsolutePath());
+			out.writeInt(args.length);
+			for(int i = 0; i < args.length; i++){
+				out.writeUTF(args[i]);
+			}
+			out.flush();
+
+			// Response
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] buffer = new byte[8192];
+			int stream;
+			while( (stream = in.readByte()) != JWalkServer.EXIT ){
+				OutputStream target = (stream == JWalkServer.STDERR) ? System.err : System.out;
+				int len = in.readInt();
+				while( len > 0 ){
+					int size = Math.min(len, buffer.length);
+					in.readFully(buffer, 0, size);
+					target.write(buffer, 0, size);
+					len -= size;
+				}
+			}
+			System.out.flush();
+			System.err.flush();
+			return in.readInt();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -2,11 +2,27 @@ package com.jwalkjs;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.mozilla.javascript.*;
 
 /**
  * Reads and parses a JavaScript file.
+ *
+ * Each instance is a parser session which holds all the state for the file currently
+ * being parsed, so separate instances can parse files on separate threads. A session
+ * should only be used by one thread at a time and reuses its CompilerEnvirons for
+ * every file it parses.
+ *
+ * Parsing only builds the Element tree, it doesn't need a Rhino Context.  The ElementDoc
+ * objects used by the comment parser and templates are created later, by whoever needs them.
  */
 public final class JWalkParser {
 
@@ -14,23 +30,30 @@ public final class JWalkParser {
 	private final static int SKIP_CHILDREN = 21;
 
 	/**
-	 * Set the debugging level for development
-	 * 0x0001 - Calls toStringTree on the root node (Token.printTrees needs to be TRUE)
-	 * 0x0010 - Prints the description for each node
-	 * 0x1000 - Debug where comments are
+	 * The parser session for each thread used by parseFiles()
 	 */
-	private static int debug = 0x0000;
-	private static int indent = 0;
+	private final static ThreadLocal<JWalkParser> sessions = new ThreadLocal<JWalkParser>(){
+		protected JWalkParser initialValue(){
+			return new JWalkParser();
+		}
+	};
 
-	private static int sourceLength;
-	private static ErrorReporter errorReporter;
+	// The debugging level, see setDebug()
+	private int debug = 0x0000;
+	private int indent = 0;
 
-	private static Element[] allElements;
-	private static ArrayList<Comment> comments = null;
+	// Reused for every file parsed in this session
+	private CompilerEnvirons env = new CompilerEnvirons();
+	private DocCache cache = null;
+
+	// Per-file state
+	private Element[] allElements;
+	private ArrayList<Comment> comments = null;
 
 	public static void main(String[] args) throws Exception{
-		debug = 0x0010;
-		ScriptFile script = parseFile(args[0], true);
+		JWalkParser parser = new JWalkParser();
+		parser.setDebug(0x0010);
+		ScriptFile script = parser.parse(new File(args[0]), true);
 		//printTree(script.global, 0);
 	}
 
@@ -53,54 +76,240 @@ public final class JWalkParser {
 	public static ScriptFile parseFile(File jsFile, boolean incComments)
 		throws java.io.FileNotFoundException, java.io.IOException {
 
-		comments = null;
+		return (new JWalkParser()).parse(jsFile, incComments);
+	}
 
-		// Init JS playground
-		Context cx = (new ContextFactory()).enterContext();
-		ScriptableObject scope = cx.initStandardObjects();
-		CompilerEnvirons env = new CompilerEnvirons();
+	public static ScriptFile parseFile(String path)
+		throws java.io.FileNotFoundException, java.io.IOException {
+		return parseFile(path, false);
+	}
 
-		// Read source code
-		ScriptFile sourceFile = new ScriptFile(jsFile);
-		sourceLength = sourceFile.source.length();
+	/**
+	 * Parse several JavaScript files in parallel, using one thread for each available processor.
+	 * @param files The JS files to parse
+	 * @param incComments Extract comments from the source
+	 * @return The parsed files, in the same order as the files collection
+	 */
+	public static List<ScriptFile> parseFiles(Collection<File> files, boolean incComments)
+		throws java.io.FileNotFoundException, java.io.IOException {
 
-		// Parse
-		ErrorReporter errorReporter = env.getErrorReporter();
-		Parser parser = new Parser(env, errorReporter);
-		ScriptOrFnNode root = parser.parse(sourceFile.source, jsFile.getAbsolutePath(), 1);
+		ExecutorService executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
+		try {
+			return parseFiles(files, incComments, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
 
-		Element global = new Element(root, null, Element.ROOT);
-		global.script = sourceFile;
-		global.name = "[global]";
-		global.top = global;
+	/**
+	 * Parse several JavaScript files in parallel.
+	 * Each worker thread of the executor parses with its own parser session.
+	 * @param files The JS files to parse
+	 * @param incComments Extract comments from the source
+	 * @param executor The executor the files will be parsed on.  It is not shut down by this method.
+	 * @return The parsed files, in the same order as the files collection
+	 */
+	public static List<ScriptFile> parseFiles(Collection<File> files, final boolean incComments, ExecutorService executor)
+		throws java.io.FileNotFoundException, java.io.IOException {
+
+		// Queue every file
+		ArrayList<Future<ScriptFile>> pending = new ArrayList<Future<ScriptFile>>(files.size());
+		Iterator<File> iter = files.iterator();
+		while( iter.hasNext() ){
+			final File file = iter.next();
+			pending.add( executor.submit(new Callable<ScriptFile>(){
+				public ScriptFile call() throws Exception {
+					return sessions.get().parse(file, incComments);
+				}
+			}) );
+		}
+
+		// Collect the results in order
+		ArrayList<ScriptFile> parsed = new ArrayList<ScriptFile>(files.size());
+		try {
+			for(int i = 0; i < pending.size(); i++){
+				parsed.add( pending.get(i).get() );
+			}
+		} catch( InterruptedException ex ){
+			cancel(pending);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while parsing files");
+		} catch( ExecutionException ex ){
+			cancel(pending);
+			Throwable cause = ex.getCause();
+			if( cause instanceof IOException ){
+				throw (IOException)cause;
+			} else if( cause instanceof RuntimeException ){
+				throw (RuntimeException)cause;
+			} else if( cause instanceof Error ){
+				throw (Error)cause;
+			}
+			throw new IOException(cause.getMessage());
+		}
+
+		return parsed;
+	}
 
+	/**
+	 * Cancel all the parse jobs that haven't finished
+	 */
+	private static void cancel(List<Future<ScriptFile>> pending){
+		for(int i = 0; i < pending.size(); i++){
+			pending.get(i).cancel(true);
+		}
+	}
+
+	/**
+	 * Set the debugging level for development
+	 * 0x0001 - Calls toStringTree on the root node (Token.printTrees needs to be TRUE)
+	 * 0x0010 - Prints the description for each node
+	 * 0x1000 - Debug where comments are
+	 * @param level The debugging flags, 0 for none
+	 */
+	public void setDebug(int level){
+		this.debug = level;
+	}
+
+	/**
+	 * Use a cache for the files parsed in this session.
+	 * Unchanged files are loaded from the cache and parsed files are saved to it.
+	 * @param cache The cache or NULL to always parse the files
+	 */
+	public void setCache(DocCache cache){
+		this.cache = cache;
+	}
+
+	/**
+	 * Parse a JavaScript file in this session and return an element tree.
+	 * The Rhino parse tree and the source are let go once the element tree has been built.
+	 * @param jsFile The JS file
+	 * @param incComments Extract comments from the source
+	 */
+	public ScriptFile parse(File jsFile, boolean incComments)
+		throws java.io.FileNotFoundException, java.io.IOException {
+
+		try {
+			// Unchanged since it was cached, without reading the source
+			ScriptFile sourceFile;
+			Element global = null;
+			if( cache != null ){
+				sourceFile = ScriptFile.unread(jsFile);
+				global = cache.load(sourceFile, incComments);
+				if( global != null ){
+					global.compact();
+					sourceFile.root = global;
+					return sourceFile;
+				}
+			}
+
+			// Read source code, it may still be unchanged if it was only touched
+			sourceFile = new ScriptFile(jsFile);
+			global = (cache != null) ? cache.load(sourceFile, incComments) : null;
+			if( global != null ){
+				global.compact();
+				sourceFile.root = global;
+				cache.store(sourceFile, incComments); // with the new modified time
+				sourceFile.release();
+				return sourceFile;
+			}
+
+			parse(jsFile, sourceFile, incComments);
+			if( cache != null ){
+				cache.store(sourceFile, incComments);
+			}
+			sourceFile.release();
+			return sourceFile;
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Parse the source of the script file and build its element tree
+	 * @param jsFile The JS file
+	 * @param sourceFile The script file with the source to parse
+	 * @param incComments Extract comments from the source
+	 */
+	private ScriptFile parse(File jsFile, ScriptFile sourceFile, boolean incComments)
+		throws java.io.IOException {
+
+		// Parse
+		Parser parser = createParser(incComments);
+		ScriptOrFnNode root = parser.parse(sourceFile.source, jsFile.getAbsolutePath(), 1);
 
 		if((debug & 0x0001) != 0){
 			System.out.println(root.toStringTree(root));
 		}
 
-		readTree(root, root, global, CONTINUE);
+		Element global = buildTree(root, sourceFile);
 
 		// Parse comments
 		if(incComments){
-			comments = new ArrayList();
-			allElements = global.getAllChildren();
-			TokenStream ts = new TokenStream(parser, null, sourceFile.source, 1);
-			readComments(global, ts, sourceFile.source, parser.getEncodedSource());
-
-			sourceFile.comments = comments;
+			sourceFile.comments = buildComments(global, parser.getCommentRanges(), sourceFile.source);
+		}
+		else{
+			sourceFile.comments = null;
 		}
 
-		sourceFile.global = global.generateDocElement(cx, scope);
-		sourceFile.comments = comments;
+		global.compact();
+		sourceFile.root = global;
 
-		Context.exit();
 		return sourceFile;
 	}
 
-	public static ScriptFile parseFile(String path)
-		throws java.io.FileNotFoundException, java.io.IOException {
-		return parseFile(path, false);
+	/**
+	 * Create a Rhino parser for one file
+	 * @param incComments Keep where the comments are, for buildComments()
+	 */
+	Parser createParser(boolean incComments){
+		Parser parser = new Parser(env, env.getErrorReporter());
+		parser.setRecordComments(incComments);
+		return parser;
+	}
+
+	/**
+	 * Build the element tree from the Rhino parse tree
+	 * @param root The parse tree of the file
+	 * @param sourceFile The script file that was parsed
+	 * @return The global element
+	 */
+	Element buildTree(ScriptOrFnNode root, ScriptFile sourceFile){
+		Element global = new Element(root, null, Element.ROOT);
+		global.script = sourceFile;
+		global.name = "[global]";
+		global.top = global;
+
+		indent = 0;
+		readTree(root, root, global, CONTINUE);
+
+		return global;
+	}
+
+	/**
+	 * Create the comments of a file and attach them to the elements around them
+	 * @param global The global element, from buildTree()
+	 * @param ranges The comments found by the parser, see Parser.getCommentRanges()
+	 * @param source The source of the file
+	 * @return All the comments, in order
+	 */
+	ArrayList<Comment> buildComments(Element global, int[] ranges, String source){
+		comments = new ArrayList<Comment>();
+		allElements = global.getAllChildren();
+		try {
+			readComments(global, ranges, source);
+			return comments;
+		} finally {
+			reset();
+		}
+	}
+
+	/**
+	 * Clear the per-file state so the session is ready for the next file
+	 */
+	private void reset(){
+		indent = 0;
+		allElements = null;
+		comments = null;
 	}
 
 	/**
@@ -189,7 +398,7 @@ public final class JWalkParser {
 	/**
 	 * Read the source tree and create a tree of Element objects
 	 */
-	public static void readTree(ScriptOrFnNode tree, Node parent, Element scope, int action){
+	public void readTree(ScriptOrFnNode tree, Node parent, Element scope, int action){
 		Node node = null;
 		int propertyIndex = 0;
 
@@ -281,90 +490,56 @@ public final class JWalkParser {
 	}
 
 	/**
-	 * Read all the comments in the source file
+	 * Read all the comments in the source file, from where the parser found them
 	 * @param global
-	 * @param ts
+	 * @param ranges The comments found by the parser, see Parser.getCommentRanges()
+	 * @param source
 	 */
-	public static void readComments(Element global, TokenStream ts, String source, String encSource)
-		throws java.io.IOException {
-
-		int tt = ts.getToken();
+	public void readComments(Element global, int[] ranges, String source){
 		int tokenEnd = 0;
 		int tokenStart = 0;
 		int commentStart = -1;
-		int lastToken = tt;
-		int lastOffset = -1;
+		int lineno = -1;
 
-		// source without space, as node width reference
-		int refIndex = 1;
-		String ref = encSource;
-
-		// Read through TokenStream and find comments
+		// Each token which had comments before it
 		String message = "";
 		Comment comment = null;
 		Comment lastComment = null;
-		while(tt > Token.EOF){
+		for(int i = 0; i + 3 < ranges.length; i += 4){
 			message = "";
 			lastComment = comment;
-			tokenStart = ts.getTokenStart();
-			tokenEnd = ts.getCursor();
-			commentStart = ts.getCommentStart();
+			commentStart = ranges[i];
+			tokenStart = ranges[i + 1];
+			tokenEnd = ranges[i + 2];
+			lineno = ranges[i + 3];
 
 			if((debug & 0x1000) != 0){
-				System.out.format("%d %9s %4d, %4d -> %4d\n", ts.getLineno(), Token.name(tt), tokenStart, tokenEnd, commentStart);
+				System.out.format("%d %4d, %4d -> %4d\n", lineno, tokenStart, tokenEnd, commentStart);
 			}
 
 			// Get string in between
-			if(commentStart > -1){
-				if(commentStart < tokenStart){
-					commentStart--;
-					message = source.substring(commentStart, tokenStart - 1).trim();
-				}
-				else if(commentStart < tokenEnd){
-					commentStart--;
-					message = source.substring(commentStart, tokenEnd - 1).trim();
-				}
-
-				if(message.length() > 0){
-					if((debug & 0x1000) != 0){
-						System.out.println(message);
-					}
-					comment = addComment(commentStart, ts.getCommentLineno(), message);
-
-					if(lastComment != null){
-						lastComment.nextComment = comment;
-						comment.previousComment = lastComment;
-					}
-				}
+			if(commentStart < tokenStart){
+				commentStart--;
+				message = source.substring(commentStart, tokenStart - 1).trim();
 			}
-
-			// Might be regex
-			if(tt == Token.DIV && lastToken != Token.NUMBER && lastToken != Token.NAME && lastToken != Token.RP){
-				ts.readRegExp(tt);
-				tt = ts.getToken();
+			else if(commentStart < tokenEnd){
+				commentStart--;
+				message = source.substring(commentStart, tokenEnd - 1).trim();
 			}
-			lastToken = tt;
-			lastOffset = tokenEnd;
-			tt = ts.getToken();
-		}
 
-	}
+			if(message.length() > 0){
+				if((debug & 0x1000) != 0){
+					System.out.println(message);
+				}
+				comment = addComment(commentStart, lineno, message);
 
-	/**
-	 * Get the index for the next node type in the encoded source
-	 * @param encSource
-	 * @param nodeType
-	 * @param cursor The current location in the encoded source
-	 * @return
-	 */
-	private static int getNextNode(String encSource, int nodeType, int cursor){
-		int len = encSource.length();
-		for(int i = cursor; i < len; i++){
-			if(encSource.charAt(i) == nodeType){
-				return i;
+				if(lastComment != null){
+					lastComment.nextComment = comment;
+					comment.previousComment = lastComment;
+				}
 			}
 		}
-		return -1;
+
 	}
 
 	/**
@@ -373,52 +548,18 @@ public final class JWalkParser {
 	 * @param lineno
 	 * @param msg
 	 */
-	private static Comment addComment(int offset, int lineno, String msg){
+	private Comment addComment(int offset, int lineno, String msg){
 		Comment comment = new Comment(lineno, offset, msg);
 
-		// Find the element right above the comment
-		// Use the offset and source length to guess where in the allElements array
-		// the element is.
+		// Find the element right above the comment:
+		// the last element that starts before the comment (allElements is sorted by start offset)
 		if(allElements.length > 0){
-			int elemNum = allElements.length;
-			int index = (int)Math.round((float)offset/(float)sourceLength * (float)elemNum);
-			int direction = 1;
-			if(index >= allElements.length){
-				index = allElements.length - 1;
-			}
-			Element elem = allElements[index];
+			int index = findElementBefore(offset);
+			Element elem = (index > -1) ? allElements[index] : null;
 			Element nextElem = (index + 1 < allElements.length) ? allElements[index + 1] : null;
-			while(elem != null){
-
-				// Found
-				if(elem.start < offset && (nextElem == null || nextElem.start >= offset)){
-					comment.previousSibling = elem;
-					comment.nextSibling = nextElem;
-					break;
-				}
-				// Overshot, change directions
-				else if(elem.start > offset){
-					direction = -1;
-				}
 
-				// Get next element
-				index += direction;
-				if(index > 0 && index < allElements.length){
-					elem = allElements[index];
-					nextElem = (index + 1 < allElements.length) ? allElements[index + 1] : null;
-				}
-				else{
-					elem = null;
-					index = 0;
-					break;
-				}
-			}
-
-			// Must be at the start of the file
-			if(index == 0){
-				nextElem = allElements[0];
-				comment.nextSibling = nextElem;
-			}
+			comment.previousSibling = elem;
+			comment.nextSibling = nextElem;
 
 			// Add to Element node
 			if(elem != null){
@@ -433,12 +574,34 @@ public final class JWalkParser {
 		return comment;
 	}
 
+	/**
+	 * Binary search allElements for the last element that starts before an offset
+	 * @param offset The offset in the source
+	 * @return The index in allElements or -1 if all the elements start at or after the offset
+	 */
+	private int findElementBefore(int offset){
+		int low = 0;
+		int high = allElements.length - 1;
+
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			if(allElements[mid].start < offset){
+				low = mid + 1;
+			}
+			else{
+				high = mid - 1;
+			}
+		}
+
+		return low - 1;
+	}
+
 	/**
 	 * Parse variable node
 	 * @param node
 	 * @param scope The function scope this node is in.
 	 */
-	private static int parseVariable(Node node, Element scope){
+	private int parseVariable(Node node, Element scope){
 		return parseVariable(node, node, null, scope);
 	}
 
@@ -448,7 +611,7 @@ public final class JWalkParser {
 	 * @param origNode The original node that started this statement
 	 * @param scope The function scope this node is in.
 	 */
-	private static int parseVariable(Node node, Node origNode, Element scope){
+	private int parseVariable(Node node, Node origNode, Element scope){
 		return parseVariable(node, origNode, null, scope);
 	}
 
@@ -459,7 +622,7 @@ public final class JWalkParser {
 	 * @param attachTo Build the variable on this element instead of creating a new one.
 	 * @param scope The function scope this node is in.
 	 */
-	private static int parseVariable(Node node, Node origNode, Element attachTo, Element scope){
+	private int parseVariable(Node node, Node origNode, Element attachTo, Element scope){
 		int type = node.getType();
 
 		Element elem;
@@ -554,8 +717,8 @@ public final class JWalkParser {
 						parseFunction(grandChild, callFunc, scope);
 
 						// Merge properties and functions variables into this variable and mark it as an object
-						if(callFunc.objReturns.size() == 1){
-							Element objLit = (Element)callFunc.objReturns.get(0);
+						if(callFunc.objReturns != null && callFunc.objReturns.size() == 1){
+							Element objLit = callFunc.objReturns.get(0);
 
 							elem.type = Element.OBJ;
 							elem.addChildren(callFunc.children, false);
@@ -621,7 +784,7 @@ public final class JWalkParser {
 	 * @param scope The function scope this node is in.
 	 * @return
 	 */
-	private static int parseFunction(Node node, Element scope){
+	private int parseFunction(Node node, Element scope){
 		return parseFunction(node, null, scope);
 	}
 
@@ -632,7 +795,7 @@ public final class JWalkParser {
 	 * @param scope The function scope this node is in.
 	 * @return
 	 */
-	private static int parseFunction(Node node, Element attachTo, Element scope){
+	private int parseFunction(Node node, Element attachTo, Element scope){
 		int type = node.getType();
 		String name = node.getString();
 
@@ -701,7 +864,7 @@ public final class JWalkParser {
 	 * @param node
 	 * @param scope The function scope this node is in.
 	 */
-	private static int parseReturn(Node node, Element scope){
+	private int parseReturn(Node node, Element scope){
 
 		// Loop through child siblings
 		Node sibling = node.getFirstChild();
@@ -722,6 +885,9 @@ public final class JWalkParser {
 
 					Element retElem = new Element(node, scope, Element.OBJ);
 					parseObjectLiteral(sibling, retElem, scope);
+					if(scope.objReturns == null){
+						scope.objReturns = new ArrayList<Element>();
+					}
 					scope.objReturns.add(retElem);
 					break;
 			}
@@ -739,7 +905,7 @@ public final class JWalkParser {
 	 * @param scope The function scope this node is in.
 	 * @return
 	 */
-	private static int parseProperty(Node node, Node origNode, Element scope){
+	private int parseProperty(Node node, Node origNode, Element scope){
 		int type = node.getType();
 		Element elem = new Element(origNode, scope, Element.PROP);
 		Node child = node.getFirstChild();
@@ -940,7 +1106,7 @@ public final class JWalkParser {
 	 * @param scope The function scope this node is in.
 	 * @return
 	 */
-	private static int parseObjectLiteral(Node node, Element attachTo, Element scope){
+	private int parseObjectLiteral(Node node, Element attachTo, Element scope){
 		Element elem;
 		if(attachTo != null){
 			elem = attachTo;
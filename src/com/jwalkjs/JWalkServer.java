@@ -0,0 +1,372 @@
+package com.jwalkjs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps JWalk running in the background, so commands don't pay for starting the JVM,
+ * loading Rhino and the comment parser, or compiling the templates every time.
+ *
+ * The server listens on a loopback port.  The port and a random token are saved in
+ * ~/.jwalk-server, which only the current user can read, and every request has to
+ * start with the token.  Requests are run one at a time.
+ *
+ * Protocol, all written with DataOutputStream:
+ *   request:  UTF protocol version, UTF token, UTF working directory, int argument count, UTF arguments
+ *   response: frames of (byte stream, int length, bytes), where stream 1 is standard out
+ *             and stream 2 is standard error, ending with (byte 0, int exit status)
+ */
+public class JWalkServer {
+
+	public static final int DEFAULT_PORT = 7741;
+	public static final String PROTOCOL = "jwalk-1";
+
+	protected static final int STDOUT = 1;
+	protected static final int STDERR = 2;
+	protected static final int EXIT = 0;
+
+	private static final String STOP = "--stop-server";
+
+	// The options of each command that are followed by a path, which may not exist yet
+	private static final String[] DOC_PATH_OPTIONS = { "-o", "--out", "--index", "--profile-json" };
+	private static final String[] INDEX_PATH_OPTIONS = { "-index" };
+
+	// Options followed by a path, or by the name of a parser or template set that comes with JWalk
+	private static final String[] DOC_LOOKUP_OPTIONS = { "-p", "--parser", "-t", "--tmpl" };
+
+	// Options followed by a value that isn't a path
+	private static final String[] DOC_VALUE_OPTIONS = { "-j", "--threads", "-r", "--render-threads", "--timeout", "--profile-top" };
+	private static final String[] INSPECT_VALUE_OPTIONS = { "-j" };
+	private static final String[] QUERY_VALUE_OPTIONS = { "-limit" };
+	private static final String[] NONE = {};
+
+	private ServerSocket socket;
+	private String token;
+	private boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		int port = DEFAULT_PORT;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-help")){
+				printUsage();
+				return;
+			}
+			else if(args[i].equals("-stop")){
+				JWalkClient client = JWalkClient.connect();
+				if( client == null ){
+					System.err.println("No JWalk server is running.");
+				} else {
+					client.send(new String[]{ STOP });
+				}
+				return;
+			}
+			else if(args[i].equals("-port") && i + 1 < args.length){
+				port = Integer.parseInt(args[++i]);
+			}
+		}
+
+		JWalkServer server = new JWalkServer(port);
+		System.out.println("JWalk server listening on port "+ server.socket.getLocalPort());
+		server.run();
+	}
+
+	/**
+	 * Print the command line usage for this class
+	 */
+	private static void printUsage(){
+		StringBuffer out = new StringBuffer();
+		out.append("\nKeeps JWalk running, so the jwalk command starts faster.\n\n");
+		out.append("usage: jwalk serve [-port n] [-stop]\n");
+		out.append("    -port    : The loopback port to listen on, "+ DEFAULT_PORT +" by default\n");
+		out.append("    -stop    : Stop the running server\n");
+		out.append("\nWhile the server runs, the jwalk command sends inspect, tree, doc and query\n");
+		out.append("commands to it. Watch mode is not available through the server.\n");
+
+		System.out.println(out.toString());
+	}
+
+	/**
+	 * Get the file the server port and token are saved in
+	 */
+	protected static File getServerFile(){
+		return new File(System.getProperty("user.home"), ".jwalk-server");
+	}
+
+	/**
+	 * Create a new, empty file that only this user can read and write.  The permissions are set
+	 * when the file is created, so the token is never readable by others, not even briefly.
+	 * @param file The file, which must not exist yet
+	 */
+	private static void createPrivateFile(File file) throws IOException {
+		try {
+			Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute( PosixFilePermissions.fromString("rw-------") ));
+		}
+
+		// Not a POSIX file system (i.e. Windows), where the home directory isn't shared by default
+		catch(UnsupportedOperationException e){
+			if( !file.createNewFile() ){
+				throw new IOException("Could not create "+ file);
+			}
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+	}
+
+	/**
+	 * Open the server socket and save the server file
+	 * @param port The loopback port
+	 */
+	public JWalkServer(int port) throws IOException {
+		socket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+
+		// Random token
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder hex = new StringBuilder();
+		for(int i = 0; i < bytes.length; i++){
+			hex.append(Integer.toHexString((bytes[i] & 0xFF) | 0x100).substring(1));
+		}
+		token = hex.toString();
+
+		// Save it for the clients, readable only by this user
+		final File serverFile = getServerFile();
+		serverFile.delete();
+		createPrivateFile(serverFile);
+		PrintStream out = new PrintStream(new FileOutputStream(serverFile));
+		out.println(socket.getLocalPort() +" "+ token);
+		out.close();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				serverFile.delete();
+			}
+		});
+	}
+
+	/**
+	 * Accept and run requests until the server is stopped
+	 */
+	public void run() throws IOException {
+		try {
+			while( running ){
+				Socket client = socket.accept();
+				try {
+					handle(client);
+				} catch( IOException ex ){
+					// The client went away
+				} finally {
+					client.close();
+				}
+			}
+		} finally {
+			socket.close();
+			getServerFile().delete();
+		}
+	}
+
+	/**
+	 * Run a single request
+	 * @param client The client connection
+	 */
+	private void handle(Socket client) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+
+		if( !in.readUTF().equals(PROTOCOL) || !in.readUTF().equals(token) ){
+			return;
+		}
+		File cwd = new File(in.readUTF());
+		String[] args = new String[in.readInt()];
+		for(int i = 0; i < args.length; i++){
+			args[i] = in.readUTF();
+		}
+
+		PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT), 8192), false);
+		PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDERR), 8192), false);
+		int status = 0;
+
+		if( args.length > 0 && args[0].equals(STOP) ){
+			running = false;
+			stdout.println("JWalk server stopped");
+		}
+		else if( isWatching(args) ){
+			stderr.println("Watch mode is not available through the server, stop it with 'jwalk serve -stop' first.");
+			status = 1;
+		}
+		else {
+			PrintStream oldOut = System.out;
+			PrintStream oldErr = System.err;
+			System.setOut(stdout);
+			System.setErr(stderr);
+			HashMap<String, String> aliases = new HashMap<String, String>();
+			args = resolvePaths(args, cwd, aliases);
+			SourcePaths.setAliases(aliases);
+			try {
+				JWalk.main(args);
+			} catch( Throwable ex ){
+				ex.printStackTrace(stderr);
+				status = 1;
+			} finally {
+				SourcePaths.setAliases(null);
+				System.setOut(oldOut);
+				System.setErr(oldErr);
+			}
+		}
+
+		stdout.flush();
+		stderr.flush();
+		out.writeByte(EXIT);
+		out.writeInt(status);
+		out.flush();
+	}
+
+	/**
+	 * Check if the command would keep running, in watch mode or as another server
+	 */
+	private static boolean isWatching(String[] args){
+		if( args.length > 0 && args[0].equals("serve") ){
+			return true;
+		}
+		for(int i = 0; i < args.length; i++){
+			if( args[i].equals("--watch") || args[i].equals("-watch") ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Make the relative paths in the arguments absolute, since the server
+	 * runs in a different directory than the client.  The source files under them
+	 * are still named by the relative paths (see SourcePaths), so the output is the
+	 * same as when the command runs in the client's directory.
+	 * @param args The command arguments, the first is the command
+	 * @param cwd The client's working directory
+	 * @param aliases Gets each absolute path, and the argument it was made from
+	 */
+	protected static String[] resolvePaths(String[] args, File cwd, Map<String, String> aliases){
+		String[] resolved = args.clone();
+		if( args.length == 0 ){
+			return resolved;
+		}
+
+		// The options of the command, and which of its other arguments are paths
+		String command = args[0];
+		String[] pathOptions = NONE, lookupOptions = NONE, valueOptions = NONE;
+		boolean lastOnly = false;
+		if( command.equals("doc") ){
+			pathOptions = DOC_PATH_OPTIONS;
+			lookupOptions = DOC_LOOKUP_OPTIONS;
+			valueOptions = DOC_VALUE_OPTIONS;
+			lastOnly = true;
+		} else if( command.equals("inspect") ){
+			pathOptions = INDEX_PATH_OPTIONS;
+			valueOptions = INSPECT_VALUE_OPTIONS;
+		} else if( command.equals("query") ){
+			pathOptions = INDEX_PATH_OPTIONS;
+			valueOptions = QUERY_VALUE_OPTIONS;
+		} else if( !command.equals("tree") && !command.equals("main") ){
+			return resolved;
+		}
+
+		int source = -1;
+		for(int i = 1; i < args.length; i++){
+			if( i + 1 < args.length && contains(pathOptions, args[i]) ){
+				resolve(resolved, ++i, cwd, aliases);
+			}
+			else if( i + 1 < args.length && contains(lookupOptions, args[i]) ){
+				if( new File(cwd, args[++i]).exists() ){
+					resolve(resolved, i, cwd, aliases);
+				}
+			}
+			else if( i + 1 < args.length && contains(valueOptions, args[i]) ){
+				i++;
+			}
+			else if( !args[i].startsWith("-") && !command.equals("query") ){
+
+				// Doc only uses its last source argument, the others are sources too
+				if( lastOnly ){
+					source = i;
+				} else {
+					resolve(resolved, i, cwd, aliases);
+				}
+			}
+		}
+		if( source > -1 ){
+			resolve(resolved, source, cwd, aliases);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Make a relative path argument absolute
+	 */
+	private static void resolve(String[] args, int i, File cwd, Map<String, String> aliases){
+		if( new File(args[i]).isAbsolute() ){
+			return;
+		}
+		String path = new File(cwd, args[i]).getPath();
+		aliases.put(path, args[i]);
+		args[i] = path;
+	}
+
+	private static boolean contains(String[] list, String value){
+		for(int i = 0; i < list.length; i++){
+			if( list[i].equals(value) ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Writes output as frames of one stream of the response
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private DataOutputStream out;
+		private int stream;
+
+		FrameOutputStream(DataOutputStream out, int stream){
+			this.out = out;
+			this.stream = stream;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[]{ (byte)b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if( len == 0 ){
+				return;
+			}
+			synchronized( out ){
+				out.writeByte(stream);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		public void flush() throws IOException {
+			synchronized( out ){
+				out.flush();
+			}
+		}
+	}
+}
@@ -3,7 +3,8 @@ package com.jwalkjs;
 import java.util.Comparator;
 
 /**
- * Used to sort the ElementDoc and ScriptFile elements by name or path
+ * Used to sort the ElementDoc and ScriptFile elements by name or path.
+ * The lower case names are kept by the objects, instead of being made again for every comparison.
  */
 public class ListCompare implements Comparator {
 
@@ -11,11 +12,11 @@ public class ListCompare implements Comparator {
 		String name1, name2;
 
 		if( o1 instanceof ElementDoc ){
-			name1 = ( (ElementDoc)o1 ).name.toLowerCase();
-			name2 = ( (ElementDoc)o2 ).name.toLowerCase();
+			name1 = ( (ElementDoc)o1 ).getSortKey();
+			name2 = ( (ElementDoc)o2 ).getSortKey();
 		} else if( o1 instanceof ScriptFile ){
-			name1 = ( (ScriptFile)o1 ).path.toLowerCase();
-			name2 = ( (ScriptFile)o2 ).path.toLowerCase();
+			name1 = ( (ScriptFile)o1 ).getSortKey();
+			name2 = ( (ScriptFile)o2 ).getSortKey();
 		} else {
 			return 0;
 		}
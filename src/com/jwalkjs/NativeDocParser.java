@@ -0,0 +1,276 @@
+package com.jwalkjs;
+
+import java.util.ArrayList;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Scriptable;
+
+/**
+ * The comment parser of doctool/parsers/default.js written in Java, used with '--parser native'.
+ *
+ * It reads the same JavaDoc style tags (a description, @param, @return, @returns and @type)
+ * and fills the ElementDoc exactly like default.js does, without calling into the interpreter
+ * for every element.  Comment parsers with their own tags still have to be written in JavaScript.
+ *
+ * The matching follows the regular expressions of default.js, and what Rhino counts as
+ * whitespace and line terminators in them, so both give the same documentation.
+ */
+public class NativeDocParser {
+
+	/**
+	 * The name of this parser on the command line
+	 */
+	public static final String NAME = "native";
+
+	private Context cx;
+	private Scriptable scope;
+
+	/**
+	 * A tag of a comment, or the description before the first tag if the name is NULL
+	 */
+	private static class Tag {
+		String name = null;
+		StringBuilder body = new StringBuilder();
+	}
+
+	/**
+	 * @param cx The context the doc objects are created in, on the current thread
+	 * @param scope The scope of the ElementDoc objects
+	 */
+	public NativeDocParser(Context cx, Scriptable scope){
+		this.cx = cx;
+		this.scope = scope;
+	}
+
+	/**
+	 * Parses all the elements of a file
+	 * @param docs The objects used to collect the documentable information of each element.
+	 * @param elements The JavaScript elements of the file, in the same order.
+	 */
+	public void parseFile(ElementDoc[] docs, Element[] elements){
+		for( int i = 0; i < elements.length; i++ ){
+			parseElement(docs[i], elements[i]);
+		}
+	}
+
+	/**
+	 * Parses a single JavaScript element and uses the
+	 * comments around it to generate the metadata.
+	 * @param doc The object used to collect the documentable information.
+	 * @param element A JavaScript element (i.e. function, variable, etc).
+	 */
+	public void parseElement(ElementDoc doc, Element element){
+		if( element.previousComment != null ){
+			parseComment(doc, element.previousComment);
+		}
+	}
+
+	/**
+	 * Parses the comment block for tags.
+	 * @param doc The element used to collect the documentable information.
+	 * @param comment The comment block to parse through.
+	 */
+	public void parseComment(ElementDoc doc, Comment comment){
+		String body = comment.getBody();
+
+		// Should this comment be associated with this element?
+		int end = comment.lineno + count(body, '\n');
+		if( end != doc.lineno - 1 ){
+			return;
+		}
+		int start = skipSpace(body, 0);
+		if( !body.startsWith("/**", start) ){
+			return;
+		}
+
+		// Extract comment text, without the '/**' and '*/'
+		body = body.substring( skipSpace(body, start + 3) );
+		int last = trimEnd(body, 0);
+		if( last >= 2 && body.charAt(last - 1) == '/' && body.charAt(last - 2) == '*' ){
+			last -= 2;
+			while( last > 0 && isSpace(body.charAt(last - 1)) ){
+				last--;
+			}
+			body = body.substring(0, last);
+		}
+
+		// Get all tags
+		ArrayList<Tag> tags = new ArrayList<Tag>();
+		Tag curr = new Tag();
+		int lineStart = 0;
+		int lineEnd;
+		String line;
+		while( lineStart <= body.length() ){
+			lineEnd = body.indexOf('\n', lineStart);
+			if( lineEnd == -1 ){
+				lineEnd = body.length();
+			}
+			line = body.substring(lineStart, lineEnd);
+			lineStart = lineEnd + 1;
+
+			// Remove leading '*'
+			int pos = skipSpace(line, 0);
+			if( pos < line.length() && line.charAt(pos) == '*' ){
+				line = line.substring( skipSpace(line, pos + 1) );
+			}
+
+			// Start of a tag? ( "@xxxxx Lorem ipsum" )
+			if( isTag(line) ){
+
+				// End current tag and add new one
+				tags.add(curr);
+				curr = new Tag();
+				int nameEnd = 1;
+				while( nameEnd < line.length() && !isSpace(line.charAt(nameEnd)) ){
+					nameEnd++;
+				}
+				curr.name = line.substring(1, nameEnd).toLowerCase();
+				curr.body.append( line, nameEnd, Math.max(nameEnd, trimEnd(line, nameEnd)) );
+			}
+
+			// Add to existing tag, without the leading space
+			else {
+				curr.body.append(' ').append( line, skipSpace(line, 0), line.length() );
+			}
+		}
+		if( curr.name != null || curr.body.length() > 0 ){
+			tags.add(curr);
+		}
+
+		// Extract data from each tag
+		Tag tag;
+		for( int i = 0; i < tags.size(); i++ ){
+			tag = tags.get(i);
+			body = tag.body.toString();
+
+			if( tag.name == null ){
+				doc.description = body;
+				doc.lineno = 1;
+				continue;
+			}
+			if( !tag.name.equals("param") && !tag.name.equals("return")
+					&& !tag.name.equals("returns") && !tag.name.equals("type") ){
+				continue;
+			}
+
+			// Parse type '@tag {TYPE} ...'
+			String type = null;
+			int open = skipSpace(body, 0);
+			if( open < body.length() && body.charAt(open) == '{' ){
+				int close = open + 1;
+				while( close < body.length() && body.charAt(close) != '}' && !isLineTerminator(body.charAt(close)) ){
+					close++;
+				}
+				if( close < body.length() && body.charAt(close) == '}' ){
+					type = body.substring(open + 1, close);
+					int from = skipSpace(body, close + 1);
+					int to = from;
+					while( to < body.length() && !isLineTerminator(body.charAt(to)) ){
+						to++;
+					}
+					body = body.substring(from, to);
+				}
+			}
+
+			// Add to documentation
+			if( tag.name.equals("param") ){
+
+				// Get name and description, from: @param {TYPE} NAME DESCRIPTION....
+				if( body.length() == 0 || isSpace(body.charAt(0)) ){
+					continue;
+				}
+				int nameEnd = 1;
+				while( nameEnd < body.length() && !isSpace(body.charAt(nameEnd)) ){
+					nameEnd++;
+				}
+				int desc = skipSpace(body, nameEnd);
+				if( hasLineTerminator(body, desc) ){
+					continue;
+				}
+
+				Scriptable param = cx.newObject(scope);
+				param.put("type", param, type);
+				param.put("name", param, body.substring(0, nameEnd));
+				param.put("desc", param, body.substring(desc));
+				doc.setParam(param);
+			}
+			else {
+				Scriptable docType = cx.newObject(scope);
+				docType.put("name", docType, type);
+				docType.put("desc", docType, body);
+				doc.type = docType;
+			}
+		}
+	}
+
+	/**
+	 * Does a line match /^@([^\s]+)(.*?)\s*$/, the start of a tag?
+	 */
+	private static boolean isTag(String line){
+		if( line.length() < 2 || line.charAt(0) != '@' || isSpace(line.charAt(1)) ){
+			return false;
+		}
+
+		// '.' doesn't match line terminators, so only whitespace can follow one
+		for( int i = 2; i < line.length(); i++ ){
+			if( isLineTerminator(line.charAt(i)) ){
+				return trimEnd(line, i) == i;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the index after the last non whitespace character, but not before a minimum
+	 */
+	private static int trimEnd(String str, int min){
+		int end = str.length();
+		while( end > min && isSpace(str.charAt(end - 1)) ){
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Get the index of the first non whitespace character from a position on
+	 */
+	private static int skipSpace(String str, int pos){
+		while( pos < str.length() && isSpace(str.charAt(pos)) ){
+			pos++;
+		}
+		return pos;
+	}
+
+	private static boolean hasLineTerminator(String str, int pos){
+		for( ; pos < str.length(); pos++ ){
+			if( isLineTerminator(str.charAt(pos)) ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int count(String str, char c){
+		int count = 0;
+		for( int i = str.indexOf(c); i != -1; i = str.indexOf(c, i + 1) ){
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * What '\s' matches in Rhino's regular expressions
+	 */
+	private static boolean isSpace(char c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r'
+			|| c == 0x2028 || c == 0x2029 || c == 0xC || c == 0xB || c == 0xA0
+			|| Character.getType(c) == Character.SPACE_SEPARATOR;
+	}
+
+	/**
+	 * What '.' doesn't match in Rhino's regular expressions
+	 */
+	private static boolean isLineTerminator(char c){
+		return c == '\n' || c == '\r' || c == 0x2028 || c == 0x2029;
+	}
+}
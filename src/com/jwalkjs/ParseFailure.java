@@ -0,0 +1,63 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import org.mozilla.javascript.RhinoException;
+
+/**
+ * Describes a source file that could not be parsed, so a batch run can report it and go on
+ */
+public class ParseFailure {
+
+	/**
+	 * The file that failed
+	 */
+	public File file;
+
+	/**
+	 * The line the error is on, or -1 if it's not about a line
+	 */
+	public int lineno = -1;
+
+	/**
+	 * What went wrong
+	 */
+	public String message;
+
+	/**
+	 * Describe why a file failed
+	 * @param file The file that failed
+	 * @param ex What was thrown while reading or parsing the file
+	 */
+	public ParseFailure(File file, Throwable ex){
+		this.file = file;
+
+		if( ex instanceof RhinoException ){
+			RhinoException error = (RhinoException)ex;
+			lineno = error.lineNumber();
+			message = error.details();
+		}
+		else if( ex instanceof TimeoutException ){
+			message = "Parsing took too long, "+ ex.getMessage();
+		}
+		else if( ex instanceof IOException ){
+			message = "Could not read the file, "+ ex.getMessage();
+		}
+		else if( ex instanceof StackOverflowError ){
+			message = "The code is nested too deeply to parse";
+		}
+		else {
+			message = ex.toString();
+		}
+	}
+
+	public String toString(){
+		String where = file.getPath();
+		if( lineno > 0 ){
+			where += ":"+ lineno;
+		}
+		return where +": "+ message;
+	}
+}
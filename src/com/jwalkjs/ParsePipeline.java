@@ -0,0 +1,470 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Discovers and parses JavaScript source files on background threads.
+ *
+ * One thread walks the source directories and queues every *.js file it finds, while a pool
+ * of workers reads and parses the queued files. Each parsed file is handed back through
+ * next() as soon as it's ready, so the caller can process file N while file N+1 is still
+ * being parsed. Both queues are bounded, so a slow consumer holds back the workers instead
+ * of letting parsed files pile up in memory.
+ *
+ * By default the first file that can't be parsed stops the pipeline. With setKeepGoing(),
+ * failed files are skipped and collected instead, and setTimeout() gives up on files which
+ * take too long, so one broken or pathological file doesn't cost the whole run. Running out
+ * of memory, or any other VM error, still stops the pipeline.
+ */
+public class ParsePipeline implements FileFilter {
+
+	// Marks the end of the discovered and parsed queues
+	private static final File NO_MORE_FILES = new File("");
+	private static final Object NO_MORE_SCRIPTS = new Object();
+
+	private File source;
+	private boolean incComments;
+	private int threads;
+	private DocCache cache = null;
+	private SymbolIndex index = null;
+	private boolean keepGoing = false;
+	private long timeout = 0;
+	private DocProfile profile = null;
+	private List<ParseFailure> failures = Collections.synchronizedList(new ArrayList<ParseFailure>());
+
+	private BlockingQueue<File> discovered;
+	private BlockingQueue<Object> parsed;
+	private ExecutorService executor = null;
+	private AtomicInteger running = new AtomicInteger();
+	private AtomicInteger stuck = new AtomicInteger();
+	private boolean finished = false;
+
+	/**
+	 * Sets up the pipeline, with one parse worker for each available processor.
+	 * @param source A source file or directory
+	 * @param incComments Extract comments from the source
+	 */
+	public ParsePipeline(File source, boolean incComments){
+		this(source, incComments, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Sets up the pipeline
+	 * @param source A source file or directory
+	 * @param incComments Extract comments from the source
+	 * @param threads The number of parse workers
+	 */
+	public ParsePipeline(File source, boolean incComments, int threads){
+		this.source = source;
+		this.incComments = incComments;
+		this.threads = Math.max(1, threads);
+
+		discovered = new ArrayBlockingQueue<File>(this.threads * 16);
+		parsed = new ArrayBlockingQueue<Object>(this.threads * 2);
+	}
+
+	/**
+	 * Load unchanged files from a cache instead of parsing them.  Must be called before start().
+	 * @param cache The cache or NULL to always parse the files
+	 */
+	public void setCache(DocCache cache){
+		this.cache = cache;
+	}
+
+	/**
+	 * Add every parsed file to a symbol index, from the worker that parsed it.  Must be called before start().
+	 * @param index The project's symbol index or NULL
+	 */
+	public void setIndex(SymbolIndex index){
+		this.index = index;
+	}
+
+	/**
+	 * Skip the files that can't be read or parsed, instead of failing.  Must be called before start().
+	 * @param keepGoing TRUE to collect the failures, see getFailures()
+	 */
+	public void setKeepGoing(boolean keepGoing){
+		this.keepGoing = keepGoing;
+	}
+
+	/**
+	 * Give up on a file if parsing it takes longer than this.  Must be called before start().
+	 * Each worker then parses on a separate thread, which is abandoned if it takes too long.
+	 * The parser can't be interrupted, so an abandoned parse keeps running, and using a processor,
+	 * until it ends on its own.  Once there are as many of them as workers, no more runner threads
+	 * are started until one ends, and the files that can't wait for one fail.
+	 * @param millis The most time for each file, or 0 for no limit
+	 */
+	public void setTimeout(long millis){
+		this.timeout = millis;
+	}
+
+	/**
+	 * Time reading and parsing each file, on the worker that does it.  Must be called before start().
+	 * @param profile The profile of the run or NULL
+	 */
+	public void setProfile(DocProfile profile){
+		this.profile = profile;
+	}
+
+	/**
+	 * Get the files that failed so far, sorted by path.  Only collected with setKeepGoing().
+	 */
+	public List<ParseFailure> getFailures(){
+		ArrayList<ParseFailure> list;
+		synchronized( failures ){
+			list = new ArrayList<ParseFailure>(failures);
+		}
+		Collections.sort(list, new Comparator<ParseFailure>(){
+			public int compare(ParseFailure a, ParseFailure b){
+				return a.file.getPath().compareTo(b.file.getPath());
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Start discovering and parsing files in the background
+	 */
+	public void start(){
+		if( executor != null ){
+			return;
+		}
+
+		executor = Executors.newFixedThreadPool(threads + 1, new ParseThreadFactory("jwalk-parse-"));
+
+		// Discover files
+		executor.execute(new Runnable(){
+			public void run(){
+				discover();
+			}
+		});
+
+		// Parse files
+		running.set(threads);
+		for(int i = 0; i < threads; i++){
+			executor.execute(new Worker());
+		}
+	}
+
+	/**
+	 * Get the next parsed file, waiting for one if none are ready yet.
+	 * Files are returned in the order they finish parsing.
+	 * @return The next parsed file or NULL if all the files have been returned.
+	 */
+	public ScriptFile next() throws IOException {
+		if( finished ){
+			return null;
+		}
+		start();
+
+		Object next;
+		try {
+			next = parsed.take();
+		} catch( InterruptedException ex ){
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while parsing source files");
+		}
+
+		// Done
+		if( next == NO_MORE_SCRIPTS ){
+			close();
+			return null;
+		}
+
+		// A file failed
+		if( next instanceof IOException ){
+			close();
+			throw (IOException)next;
+		} else if( next instanceof RuntimeException ){
+			close();
+			throw (RuntimeException)next;
+		} else if( next instanceof Error ){
+			close();
+			throw (Error)next;
+		}
+
+		return (ScriptFile)next;
+	}
+
+	/**
+	 * Stop all the background threads
+	 */
+	public void close(){
+		finished = true;
+		if( executor != null ){
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Walks the source file or directory and queues all the JS files for the parse workers
+	 */
+	private void discover(){
+		try {
+			if( source.isDirectory() ){
+				discover(source);
+			} else {
+				discovered.put(source);
+			}
+		} catch( InterruptedException ex ){
+			return;
+		} catch( Throwable ex ){
+			fail(ex);
+		}
+
+		// Tell each worker there's nothing left
+		try {
+			for(int i = 0; i < threads; i++){
+				discovered.put(NO_MORE_FILES);
+			}
+		} catch( InterruptedException ex ){
+			return;
+		}
+	}
+
+	/**
+	 * Recursively queue all the JS files in a directory
+	 * @param dir The directory to walk
+	 */
+	private void discover(File dir) throws InterruptedException {
+		File[] files = dir.listFiles(this);
+		if( files == null ){
+			return;
+		}
+
+		for(int i = 0; i < files.length; i++){
+			if( files[i].isDirectory() ){
+				discover(files[i]);
+			} else {
+				discovered.put(files[i]);
+			}
+		}
+	}
+
+	/**
+	 * Parses the discovered files until there are no more.
+	 * Each worker uses its own parser session.
+	 */
+	private class Worker implements Runnable {
+		private JWalkParser session = newSession();
+		private ExecutorService runner = null;
+
+		public void run(){
+			try {
+				File file;
+				while( (file = discovered.take()) != NO_MORE_FILES ){
+					try {
+						ScriptFile script = parse(file);
+						if( index != null ){
+							index.add(script);
+						}
+						parsed.put( script );
+					} catch( InterruptedException ex ){
+						throw ex;
+					} catch( Exception ex ){
+						failed(file, ex);
+					} catch( StackOverflowError ex ){
+						failed(file, ex);
+					} catch( Error ex ){
+
+						// Out of memory or another VM error, which skipping the file won't fix
+						fail(ex);
+						return;
+					}
+				}
+
+				// Last worker closes the parsed queue
+				if( running.decrementAndGet() == 0 ){
+					parsed.put(NO_MORE_SCRIPTS);
+				}
+			} catch( InterruptedException ex ){
+				return;
+			} finally {
+				if( runner != null ){
+					runner.shutdownNow();
+				}
+			}
+		}
+
+		/**
+		 * Parse a file with a session, timing it on the thread that does the parsing
+		 */
+		private ScriptFile parse(JWalkParser parser, File file) throws IOException {
+			if( profile == null ){
+				return parser.parse(file, incComments);
+			}
+
+			DocProfile.Sample start = profile.start();
+			ScriptFile script = parser.parse(file, incComments);
+			profile.record(DocProfile.PARSE, script.path, start);
+			return script;
+		}
+
+		/**
+		 * Parse a file, on the runner thread if there's a timeout
+		 */
+		private ScriptFile parse(final File file) throws Exception {
+			if( timeout <= 0 ){
+				return parse(session, file);
+			}
+
+			if( runner == null ){
+				waitForStuck();
+				runner = Executors.newSingleThreadExecutor(new ParseThreadFactory(Thread.currentThread().getName() +"-runner-"));
+			}
+			final JWalkParser current = session;
+			final AtomicInteger state = new AtomicInteger(RUNNING);
+			Future<ScriptFile> job = runner.submit(new Callable<ScriptFile>(){
+				public ScriptFile call() throws Exception {
+					try {
+						return parse(current, file);
+					} finally {
+						if( !state.compareAndSet(RUNNING, DONE) ){
+							unstuck();
+						}
+					}
+				}
+			});
+
+			try {
+				return job.get(timeout, TimeUnit.MILLISECONDS);
+			} catch( TimeoutException ex ){
+
+				// The parser can't be interrupted, so it's left to finish on its own,
+				// and the next files get a new thread and session
+				stuck.incrementAndGet();
+				if( !state.compareAndSet(RUNNING, ABANDONED) ){
+					unstuck();
+				}
+				job.cancel(true);
+				runner.shutdownNow();
+				runner = null;
+				session = newSession();
+				throw new TimeoutException("gave up after "+ timeout +"ms");
+			} catch( ExecutionException ex ){
+				Throwable cause = ex.getCause();
+				if( cause instanceof Error ){
+					throw (Error)cause;
+				}
+				throw (Exception)cause;
+			}
+		}
+	}
+
+	// The states of a parse on a runner thread
+	private static final int RUNNING = 0;
+	private static final int DONE = 1;
+	private static final int ABANDONED = 2;
+
+	/**
+	 * Wait, at most the timeout, for an abandoned parse to end if there are as many still
+	 * running as workers, so they can't take up more and more threads and processors.
+	 * @throws TimeoutException If none of them ended
+	 */
+	private void waitForStuck() throws TimeoutException, InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized( stuck ){
+			while( stuck.get() >= threads ){
+				long wait = end - System.currentTimeMillis();
+				if( wait <= 0 ){
+					throw new TimeoutException("gave up, "+ stuck.get() +" files that took too long are still being parsed");
+				}
+				stuck.wait(wait);
+			}
+		}
+	}
+
+	/**
+	 * An abandoned parse ended
+	 */
+	private void unstuck(){
+		synchronized( stuck ){
+			stuck.decrementAndGet();
+			stuck.notifyAll();
+		}
+	}
+
+	/**
+	 * Create a parser session for a worker
+	 */
+	private JWalkParser newSession(){
+		JWalkParser session = new JWalkParser();
+		session.setCache(cache);
+		return session;
+	}
+
+	/**
+	 * Skip or pass on a file that couldn't be parsed
+	 * @param file The file
+	 * @param ex What was thrown while reading or parsing it
+	 */
+	private void failed(File file, Throwable ex){
+		if( keepGoing ){
+			failures.add( new ParseFailure(file, ex) );
+		} else if( ex instanceof IOException ){
+			fail( new IOException("Could not read or process the file '"+ file.getAbsolutePath() +"'") );
+		} else if( ex instanceof TimeoutException ){
+			fail( new IOException("Parsing the file '"+ file.getAbsolutePath() +"' took too long, "+ ex.getMessage()) );
+		} else {
+			fail(ex);
+		}
+	}
+
+	/**
+	 * Pass an error on to the consumer
+	 * @param ex The exception or error that was thrown
+	 */
+	private void fail(Throwable ex){
+		try {
+			parsed.put(ex);
+		} catch( InterruptedException ie ){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Creates the daemon threads of the pipeline
+	 */
+	private static class ParseThreadFactory implements ThreadFactory {
+		private String prefix;
+		private int count = 0;
+
+		ParseThreadFactory(String prefix){
+			this.prefix = prefix;
+		}
+
+		public synchronized Thread newThread(Runnable task){
+			Thread thread = new Thread(task, prefix + (count++));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Filter that only shows *.js files and directories
+	 * @param pathname The file to be tested
+	 * @return
+	 */
+	public boolean accept(File pathname) {
+		return ( pathname.isDirectory() || pathname.getName().toLowerCase().endsWith(".js") );
+	}
+}
@@ -0,0 +1,92 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Looks up where symbols are defined, in an index file written by 'jwalk inspect' or 'jwalk doc'
+ */
+public class QueryIndex {
+
+	public static final String DEFAULT_INDEX = ".jwalk-index";
+
+	public static void main(String[] args) throws IOException {
+
+		if(args.length == 0 || args[0].equals("-help")){
+			printUsage();
+			return;
+		}
+
+		File indexFile = new File(DEFAULT_INDEX);
+		boolean prefix = false;
+		int limit = 0;
+		String name = null;
+		for(int index = 0; index < args.length; index++){
+
+			if(args[index].equals("-index") && index + 1 < args.length){
+				indexFile = new File(args[++index]);
+				continue;
+			}
+
+			if(args[index].equals("-prefix")){
+				prefix = true;
+				continue;
+			}
+
+			if(args[index].equals("-limit") && index + 1 < args.length){
+				try {
+					limit = Integer.parseInt(args[++index]);
+				} catch( NumberFormatException ex ){
+					System.err.println("'"+ args[index] +"' is not a valid limit.");
+					return;
+				}
+				continue;
+			}
+
+			name = args[index];
+		}
+
+		if(name == null){
+			printUsage();
+			return;
+		}
+		if(!indexFile.exists()){
+			System.err.println("The index file '"+ indexFile.getPath() +"' does not exist. Create it with 'jwalk inspect -index "+ indexFile.getPath() +" path'.");
+			return;
+		}
+
+		IndexFile index = new IndexFile(indexFile);
+		List<IndexFile.Entry> found = (prefix) ? index.findPrefix(name, limit) : index.find(name);
+
+		IndexFile.Entry entry;
+		StringBuilder out = new StringBuilder();
+		for(int i = 0; i < found.size(); i++){
+			entry = found.get(i);
+			out.append(entry.name).append('\t');
+			out.append(entry.getTypeName()).append('\t');
+			out.append(entry.path).append(':').append(entry.lineno);
+			if(entry.implicit){
+				out.append("\timplicit global");
+			}
+			out.append('\n');
+		}
+		System.out.print(out.toString());
+	}
+
+	/**
+	 * Print the command line usage for this class
+	 */
+	private static void printUsage(){
+		StringBuffer out = new StringBuffer();
+		out.append("\nFinds where global names and object chains are defined, without parsing any files.\n\n");
+		out.append("usage: jwalk query [-index file] [-prefix] [-limit n] name\n");
+		out.append("    -index   : The index file, written by 'jwalk inspect -index' or 'jwalk doc --index'.\n");
+		out.append("               Defaults to '"+ DEFAULT_INDEX +"'\n");
+		out.append("    -prefix  : Find all the names that start with 'name'\n");
+		out.append("    -limit   : The most results to print for a prefix search\n");
+		out.append("    name     : A global name or object chain, i.e. 'Foo.bar.baz'\n");
+
+		System.out.println(out.toString());
+	}
+}
@@ -0,0 +1,93 @@
+package com.jwalkjs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeJavaArray;
+import org.mozilla.javascript.NativeJavaObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.WrapFactory;
+
+/**
+ * Wraps the documentation model (ScriptFile, Element and ElementDoc objects) so scripts can
+ * read it but not change it.  Used when several templates render from the same model at once.
+ *
+ * Fields can't be set, the methods that change the model can't be called, and the Java arrays
+ * and lists the model returns can't be changed.  The 'type' and parameter objects of an ElementDoc
+ * are JavaScript objects made by the comment parser, which this can't cover.
+ */
+public class ReadOnlyWrapFactory extends WrapFactory {
+
+	/**
+	 * The methods of the model that change it
+	 */
+	private static final Set<String> MUTATORS = new HashSet<String>(Arrays.asList(new String[]{
+		"addChild", "addChildren", "removeChild", "addDatatype", "compact", "rebuildChildList",
+		"generateDocElement", "destroyDocElement", "setParam", "freeze", "release"
+	}));
+
+	// Rhino's WrapFactory takes a raw Class, so these have to as well to override it
+	@SuppressWarnings("rawtypes")
+	public Object wrap(Context cx, Scriptable scope, Object obj, Class staticType){
+		if( obj != null && obj.getClass().isArray() ){
+			return new ReadOnlyJavaArray(scope, obj);
+		}
+		return super.wrap(cx, scope, obj, staticType);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Scriptable wrapAsJavaObject(Context cx, Scriptable scope, Object javaObject, Class staticType){
+		if( javaObject instanceof ElementDoc || javaObject instanceof Element || javaObject instanceof ScriptFile ){
+			return new ReadOnlyJavaObject(scope, javaObject, staticType);
+		}
+		if( javaObject instanceof List ){
+			return super.wrapAsJavaObject(cx, scope, Collections.unmodifiableList((List<?>)javaObject), List.class);
+		}
+		return super.wrapAsJavaObject(cx, scope, javaObject, staticType);
+	}
+
+	/**
+	 * A Java object wrapper that doesn't allow its fields to be set, or its mutators to be called
+	 */
+	private static class ReadOnlyJavaObject extends NativeJavaObject {
+		private static final long serialVersionUID = 1L;
+
+		ReadOnlyJavaObject(Scriptable scope, Object javaObject, Class<?> staticType){
+			super(scope, javaObject, staticType);
+		}
+
+		public Object get(String name, Scriptable start){
+			if( MUTATORS.contains(name) ){
+				throw Context.reportRuntimeError("Cannot call '"+ name +"', the documentation model is read-only while templates render.");
+			}
+			return super.get(name, start);
+		}
+
+		public void put(String name, Scriptable start, Object value){
+			throw Context.reportRuntimeError("Cannot set '"+ name +"', the documentation model is read-only while templates render.");
+		}
+
+		public void put(int index, Scriptable start, Object value){
+			throw Context.reportRuntimeError("Cannot set '"+ index +"', the documentation model is read-only while templates render.");
+		}
+	}
+
+	/**
+	 * A Java array wrapper that doesn't allow its elements to be set
+	 */
+	private static class ReadOnlyJavaArray extends NativeJavaArray {
+		private static final long serialVersionUID = 1L;
+
+		ReadOnlyJavaArray(Scriptable scope, Object array){
+			super(scope, array);
+		}
+
+		public void put(int index, Scriptable start, Object value){
+			throw Context.reportRuntimeError("Cannot set '"+ index +"', the documentation model is read-only while templates render.");
+		}
+	}
+}
@@ -1,9 +1,16 @@
 package com.jwalkjs;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 
 /**
@@ -11,6 +18,16 @@ import java.util.ArrayList;
  */
 public class ScriptFile {
 
+	/**
+	 * The charset source files are read with, unless another one is given.
+	 */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Files at least this big are memory mapped instead of read into a buffer.
+	 */
+	private static final long MAP_THRESHOLD = 1024 * 1024;
+
 	/**
 	 * File path to the script file.
 	 */
@@ -22,12 +39,19 @@ public class ScriptFile {
 	public String name = "";
 
 	/**
-	 * The source contents of the script file
+	 * The source contents of the script file.
+	 * This is NULL once the file has been parsed and released, use getSource() to read it again.
 	 */
 	public String source = "";
 
 	/**
-	 * The 'virtual' global scope doc element for this script.
+	 * The 'virtual' global scope element for this script, which holds the whole element tree.
+	 */
+	public Element root = null;
+
+	/**
+	 * The doc element of the global scope.
+	 * Only the doc pipeline creates it, when it runs the comment parser on this script.
 	 */
 	public ElementDoc global = null;
 
@@ -36,6 +60,33 @@ public class ScriptFile {
 	 */
 	public ArrayList<Comment> comments = new ArrayList<Comment>();
 
+	/**
+	 * SHA-1 hash of the source, created the first time it's requested.
+	 */
+	private String hash = null;
+
+	/**
+	 * The file the source is read from
+	 */
+	private File file;
+
+	/**
+	 * The charset the source was read with
+	 */
+	private Charset charset;
+
+	/**
+	 * The length and modified time of the file when the source was read
+	 */
+	private long length;
+	private long modified;
+
+	/**
+	 * The path in lower case, for sorting
+	 */
+	private String sortKey = null;
+	private String sortKeyPath = null;
+
 	/**
 	 * Reads the contents of the source file
 	 * @param path The path to the JavaScript file to read.
@@ -51,21 +102,195 @@ public class ScriptFile {
 	 * @throws IOException
 	 */
 	protected ScriptFile(File sourceFile) throws IOException{
+		this( sourceFile, DEFAULT_CHARSET );
+	}
+
+	/**
+	 * Reads the contents of the source file
+	 * @param path The JavaScript file to read.
+	 * @param charset The charset the file is encoded in.
+	 * @throws IOException
+	 */
+	protected ScriptFile(File sourceFile, Charset charset) throws IOException{
+		this( sourceFile, charset, true );
+	}
+
+	/**
+	 * @param sourceFile The JavaScript file.
+	 * @param charset The charset the file is encoded in.
+	 * @param read Read the source now, otherwise it's read when it's requested
+	 */
+	private ScriptFile(File sourceFile, Charset charset, boolean read) throws IOException{
 
-		this.path = sourceFile.getPath();
+		this.file = sourceFile;
+		this.path = SourcePaths.display(sourceFile);
 		this.name = sourceFile.getName();
+		this.charset = charset;
+
+		length = sourceFile.length();
+		modified = sourceFile.lastModified();
+		source = read ? readSource(sourceFile, charset) : null;
+	}
+
+	/**
+	 * Create a script file without reading the source, for a file that can be loaded from the cache.
+	 * The source is read if it's requested, as long as the file hasn't changed since.
+	 * @param sourceFile The JavaScript file.
+	 */
+	protected static ScriptFile unread(File sourceFile) throws IOException {
+		return new ScriptFile( sourceFile, DEFAULT_CHARSET, false );
+	}
+
+	/**
+	 * Get the source contents of the script file.
+	 * If the source has been released, it's read from the file again, without keeping it.
+	 * @throws IOException If the source was released and the file has changed since it was parsed
+	 */
+	public String getSource() throws IOException {
+		String source = this.source;
+		if( source != null ){
+			return source;
+		}
+		if( file.length() != length || file.lastModified() != modified ){
+			throw new IOException("The file '"+ path +"' has changed since it was parsed.");
+		}
+		return readSource(file, charset);
+	}
+
+	/**
+	 * Get the file the source is read from.  This is the same as the path,
+	 * unless the command runs in the server (see SourcePaths).
+	 */
+	public File getFile(){
+		return file;
+	}
+
+	/**
+	 * The length of the file when it was read, or created with unread()
+	 */
+	protected long getLength(){
+		return length;
+	}
+
+	/**
+	 * The modified time of the file when it was read, or created with unread()
+	 */
+	protected long getModified(){
+		return modified;
+	}
+
+	/**
+	 * Let go of the source once everything has been taken from it, so the memory used
+	 * by a doc run doesn't grow with the size of the source.  The hash is created first,
+	 * so it's always the hash of the source that was parsed.
+	 */
+	public void release(){
+		getHash();
+		source = null;
+	}
+
+	/**
+	 * Read the whole source file in one pass and decode it.
+	 * The line breaks are kept as they are in the file, so the source offsets match the file,
+	 * but a line break is added to the end if the file doesn't end with one.
+	 * @param sourceFile The file to read
+	 * @param charset The charset the file is encoded in.
+	 */
+	protected static String readSource(File sourceFile, Charset charset) throws IOException {
+		FileInputStream in = new FileInputStream(sourceFile);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if( size > Integer.MAX_VALUE ){
+				throw new IOException("The file '"+ sourceFile.getPath() +"' is too big to read.");
+			}
 
-		// Read file contents
-		String line;
-		StringBuilder content = new StringBuilder();
-		BufferedReader reader = new BufferedReader( new FileReader(sourceFile) );
-		while((line = reader.readLine()) != null){
-			content.append(line);
-			content.append(System.getProperty("line.separator"));
+			// Map big files, read small ones
+			ByteBuffer bytes;
+			if( size >= MAP_THRESHOLD ){
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				bytes = ByteBuffer.allocate((int)size);
+				while( bytes.hasRemaining() && channel.read(bytes) > -1 ){ }
+				bytes.flip();
+			}
+
+			CharBuffer chars = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)
+				.decode(bytes);
+
+			// End with a line break
+			int length = chars.length();
+			if( length == 0 || (chars.get(length - 1) != '\n' && chars.get(length - 1) != '\r') ){
+				StringBuilder content = new StringBuilder(length + 1);
+				content.append(chars);
+				content.append('\n');
+				return content.toString();
+			}
+
+			return chars.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the path in lower case, which the files are sorted by.
+	 */
+	public String getSortKey(){
+		String path = this.path;
+		if( sortKey == null || sortKeyPath != path ){
+			sortKeyPath = path;
+			sortKey = path.toLowerCase();
+		}
+		return sortKey;
+	}
+
+	/**
+	 * Returns a SHA-1 hash of the source contents, as a hex string.
+	 */
+	public String getHash(){
+		if( hash == null ){
+			try {
+				hash = hash(getSource());
+			} catch( IOException ex ){
+				throw new RuntimeException(ex);
+			}
 		}
+		return hash;
+	}
 
-		source = content.toString();
+	/**
+	 * Set the hash of a file whose source hasn't been read, from the cache entry it's loaded from
+	 * @param hash The SHA-1 hash of the source, as a hex string
+	 */
+	protected void setHash(String hash){
+		if( this.hash == null ){
+			this.hash = hash;
+		}
 	}
 
+	/**
+	 * Create a SHA-1 hash of a string
+	 * @param str The string to hash
+	 * @return The hash as a hex string
+	 */
+	protected static String hash(String str){
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest( str.getBytes("UTF-8") );
+
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for(int i = 0; i < digest.length; i++){
+				hex.append( Character.forDigit((digest[i] >> 4) & 0xF, 16) );
+				hex.append( Character.forDigit(digest[i] & 0xF, 16) );
+			}
+			return hex.toString();
+		} catch( NoSuchAlgorithmException ex ){
+			throw new RuntimeException(ex);
+		} catch( UnsupportedEncodingException ex ){
+			throw new RuntimeException(ex);
+		}
+	}
 
 }
@@ -0,0 +1,78 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Names source files the way the user wrote their paths.
+ *
+ * A command that runs in the server (see JWalkServer) gets its relative arguments made absolute,
+ * since the server runs in a different directory than the client.  The server registers those
+ * arguments here, so the files under them keep the relative paths they'd have if the command ran
+ * in the client's directory, and the documentation and indexes come out the same either way.
+ */
+public class SourcePaths {
+
+	/**
+	 * The absolute paths the server made, and the arguments they were made from
+	 */
+	private static volatile Map<String, String> aliases = null;
+
+	/**
+	 * Set the arguments that were made absolute, for the command that's about to run
+	 * @param absolute The absolute paths, and the relative arguments they came from, or NULL for none
+	 */
+	public static void setAliases(Map<String, String> absolute){
+		aliases = absolute;
+	}
+
+	/**
+	 * Get the path a source file is shown by
+	 * @param file The file, as it was found
+	 */
+	public static String display(File file){
+		String path = file.getPath();
+		Map<String, String> map = aliases;
+		if( map == null ){
+			return path;
+		}
+
+		Map.Entry<String, String> alias;
+		Iterator<Map.Entry<String, String>> iter = map.entrySet().iterator();
+		while( iter.hasNext() ){
+			alias = iter.next();
+			if( path.equals(alias.getKey()) ){
+				return alias.getValue();
+			}
+			if( path.startsWith(alias.getKey() + File.separator) ){
+				return alias.getValue() + path.substring(alias.getKey().length());
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * Get the file a shown path refers to, the reverse of display()
+	 * @param path The path a source file is shown by
+	 */
+	public static File resolve(String path){
+		Map<String, String> map = aliases;
+		if( map == null ){
+			return new File(path);
+		}
+
+		Map.Entry<String, String> alias;
+		Iterator<Map.Entry<String, String>> iter = map.entrySet().iterator();
+		while( iter.hasNext() ){
+			alias = iter.next();
+			if( path.equals(alias.getValue()) ){
+				return new File(alias.getKey());
+			}
+			if( path.startsWith(alias.getValue() + File.separator) ){
+				return new File(alias.getKey() + path.substring(alias.getValue().length()));
+			}
+		}
+		return new File(path);
+	}
+}
@@ -0,0 +1,218 @@
+package com.jwalkjs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches JavaScript source files and directories for changes.
+ *
+ * Editors often save a file in several steps, so after the first change the watcher
+ * waits until the files have been quiet for a moment and reports everything at once.
+ */
+public class SourceWatcher {
+
+	private static final long QUIET_MILLIS = 200;
+
+	private WatchService service;
+	private HashMap<WatchKey, File> keys = new HashMap<WatchKey, File>();
+	private HashSet<File> sourceDirs = new HashSet<File>();
+	private HashSet<File> sourceFiles = new HashSet<File>();
+	private boolean recursive;
+
+	/**
+	 * The changes found by a call to next()
+	 */
+	public static class Changes {
+
+		/**
+		 * JS files that were created or modified
+		 */
+		public Set<File> changed = new LinkedHashSet<File>();
+
+		/**
+		 * Files and directories that were deleted
+		 */
+		public Set<File> deleted = new LinkedHashSet<File>();
+
+		/**
+		 * Check if a file was deleted, either itself or one of its parent directories
+		 * @param file The file to check
+		 */
+		public boolean isDeleted(File file){
+			for( File dir = file; dir != null; dir = dir.getParentFile() ){
+				if( deleted.contains(dir) ){
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Start watching a set of source files and directories
+	 * @param sources The files and directories to watch
+	 * @param recursive Watch the sub directories too
+	 */
+	public SourceWatcher(File[] sources, boolean recursive) throws IOException {
+		this.recursive = recursive;
+		service = FileSystems.getDefault().newWatchService();
+
+		File source;
+		for( int i = 0; i < sources.length; i++ ){
+			source = sources[i].getAbsoluteFile();
+			if( source.isDirectory() ){
+				register(source, null);
+			} else {
+				sourceFiles.add(source);
+				watch(source.getParentFile());
+			}
+		}
+	}
+
+	/**
+	 * Wait for the next changes to the JS files
+	 * @return The changes, never empty
+	 */
+	public Changes next() throws IOException, InterruptedException {
+		Changes changes = new Changes();
+
+		while( changes.changed.isEmpty() && changes.deleted.isEmpty() ){
+			WatchKey key = service.take();
+
+			// Collect until things are quiet
+			while( key != null ){
+				readEvents(key, changes);
+				key = service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		return changes;
+	}
+
+	/**
+	 * Stop watching
+	 */
+	public void close() throws IOException {
+		service.close();
+	}
+
+	/**
+	 * Start getting the events of a directory
+	 */
+	private void watch(File dir) throws IOException {
+		if( keys.containsValue(dir) ){
+			return;
+		}
+
+		WatchKey key = dir.toPath().register(service,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		keys.put(key, dir);
+	}
+
+	/**
+	 * Read the events of a watch key
+	 */
+	private void readEvents(WatchKey key, Changes changes) throws IOException {
+		File dir = keys.get(key);
+		List<WatchEvent<?>> events = key.pollEvents();
+		if( !key.reset() ){
+			keys.remove(key);
+		}
+		if( dir == null ){
+			return;
+		}
+
+		WatchEvent<?> event;
+		File file;
+		for( int i = 0; i < events.size(); i++ ){
+			event = events.get(i);
+			if( event.kind() == StandardWatchEventKinds.OVERFLOW ){
+				continue;
+			}
+
+			// Only a file in this directory is being watched
+			file = new File(dir, ((Path)event.context()).toString());
+			if( !sourceDirs.contains(dir) && !sourceFiles.contains(file) ){
+				continue;
+			}
+
+			// Deleted
+			if( event.kind() == StandardWatchEventKinds.ENTRY_DELETE ){
+				changes.changed.remove(file);
+				changes.deleted.add(file);
+				unregister(file);
+			}
+
+			// New directory
+			else if( file.isDirectory() ){
+				if( recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE ){
+					changes.deleted.remove(file);
+					register(file, changes);
+				}
+			}
+
+			// Created or modified
+			else if( file.getName().toLowerCase().endsWith(".js") ){
+				changes.deleted.remove(file);
+				changes.changed.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Forget a deleted directory and its sub directories, so they're watched again if they come back
+	 * @param dir The deleted directory
+	 */
+	private void unregister(File dir){
+		Iterator<File> iter = sourceDirs.iterator();
+		String prefix = dir.getPath() + File.separator;
+		File source;
+		while( iter.hasNext() ){
+			source = iter.next();
+			if( source.equals(dir) || source.getPath().startsWith(prefix) ){
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Watch a directory, and its sub directories if this is recursive
+	 * @param dir The directory
+	 * @param changes If not NULL, the JS files already in the directory are added as changed
+	 */
+	private void register(File dir, Changes changes) throws IOException {
+		if( !sourceDirs.add(dir) ){
+			return;
+		}
+		watch(dir);
+
+		File[] files = dir.listFiles();
+		if( files == null ){
+			return;
+		}
+		for( int i = 0; i < files.length; i++ ){
+			if( files[i].isDirectory() ){
+				if( recursive ){
+					register(files[i], changes);
+				}
+			} else if( changes != null && files[i].getName().toLowerCase().endsWith(".js") ){
+				changes.changed.add(files[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package com.jwalkjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An index of the global symbols defined across all the files of a project.
+ *
+ * Every global variable, function and object, and every member of a global object
+ * or constructor, is indexed by its dotted name (as returned by InspectFile.getObjectChain)
+ * with the file, line and type of the element that defines it.  Files are added as
+ * they're parsed, from any number of threads, and each lookup is a single hash lookup.
+ */
+public class SymbolIndex {
+
+	/**
+	 * Where a symbol is defined
+	 */
+	public static class Symbol {
+		public String name;
+		public ScriptFile script;
+		public int lineno;
+		public int type;
+		public boolean implicit;
+
+		Symbol(String name, ScriptFile script, Element elem){
+			this.name = name;
+			this.script = script;
+			this.lineno = elem.lineno;
+			this.type = elem.type;
+			this.implicit = elem.implicit_global;
+		}
+
+		public String toString(){
+			return name +" ("+ script.path +":"+ lineno +")";
+		}
+	}
+
+	private static final Symbol[] NONE = new Symbol[0];
+
+	// Symbols by name, and the names defined by each file
+	private ConcurrentHashMap<String, Symbol[]> symbols = new ConcurrentHashMap<String, Symbol[]>();
+	private ConcurrentHashMap<String, String[]> fileNames = new ConcurrentHashMap<String, String[]>();
+
+	// A hash of all the symbols, or NULL when it has to be computed again
+	private volatile String version = null;
+
+	/**
+	 * Add all the global symbols of a parsed file.
+	 * If the file was already added, its old symbols are replaced.
+	 * @param script The parsed file
+	 */
+	public void add(ScriptFile script){
+		remove(script.path);
+
+		ArrayList<Symbol> found = new ArrayList<Symbol>();
+		Element global = script.root;
+		Element[] children = global.getChildren();
+		for(int i = 0; i < children.length; i++){
+			collect(script, children[i], true, found);
+		}
+
+		String[] names = new String[found.size()];
+		for(int i = 0; i < names.length; i++){
+			names[i] = found.get(i).name;
+			put(found.get(i));
+		}
+		fileNames.put(script.path, names);
+		version = null;
+	}
+
+	/**
+	 * Remove all the symbols of a file
+	 * @param path The path of the file, as in ScriptFile.path
+	 */
+	public void remove(String path){
+		String[] names = fileNames.remove(path);
+		if( names == null ){
+			return;
+		}
+		version = null;
+
+		for(int i = 0; i < names.length; i++){
+			Symbol[] current, updated;
+			do {
+				current = symbols.get(names[i]);
+				if( current == null ){
+					break;
+				}
+
+				ArrayList<Symbol> keep = new ArrayList<Symbol>(current.length);
+				for(int n = 0; n < current.length; n++){
+					if( !current[n].script.path.equals(path) ){
+						keep.add(current[n]);
+					}
+				}
+				updated = keep.toArray(new Symbol[keep.size()]);
+			} while( updated.length == 0 ? !symbols.remove(names[i], current) : !symbols.replace(names[i], current, updated) );
+		}
+	}
+
+	/**
+	 * Get where a symbol is defined.
+	 * An explicit definition wins over an implicit global, otherwise the one in the file with the lowest path,
+	 * so the result doesn't depend on the order the files were parsed in.
+	 * @param name The global name or dotted object chain, i.e. "Foo.bar.baz"
+	 * @return The definition or NULL if it's not defined anywhere
+	 */
+	public Symbol lookup(String name){
+		Symbol[] defs = symbols.get(name);
+		if( defs == null ){
+			return null;
+		}
+		for(int i = 0; i < defs.length; i++){
+			if( !defs[i].implicit ){
+				return defs[i];
+			}
+		}
+		return defs[0];
+	}
+
+	/**
+	 * Get all the definitions of a symbol, from all files, sorted by path and line
+	 * @param name The global name or dotted object chain
+	 */
+	public Symbol[] lookupAll(String name){
+		Symbol[] defs = symbols.get(name);
+		return (defs == null) ? NONE : defs.clone();
+	}
+
+	/**
+	 * Is the symbol explicitly defined (not an implicit global) in a file other than this one
+	 * @param name The global name or dotted object chain
+	 * @param script The file to ignore
+	 */
+	public boolean isDefinedOutside(String name, ScriptFile script){
+		Symbol[] defs = symbols.get(name);
+		if( defs == null ){
+			return false;
+		}
+		for(int i = 0; i < defs.length; i++){
+			if( !defs[i].implicit && !defs[i].script.path.equals(script.path) ){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the paths of all the files in the index
+	 */
+	public String[] getPaths(){
+		return fileNames.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Get all the symbols defined by a file
+	 * @param path The path of the file, as in ScriptFile.path
+	 */
+	public Symbol[] getSymbols(String path){
+		String[] names = fileNames.get(path);
+		if( names == null ){
+			return NONE;
+		}
+
+		ArrayList<Symbol> found = new ArrayList<Symbol>();
+		HashSet<String> seen = new HashSet<String>();
+		for(int i = 0; i < names.length; i++){
+			Symbol[] defs = symbols.get(names[i]);
+			if( defs == null || !seen.add(names[i]) ){
+				continue;
+			}
+			for(int n = 0; n < defs.length; n++){
+				if( defs[n].script.path.equals(path) ){
+					found.add(defs[n]);
+				}
+			}
+		}
+		return found.toArray(new Symbol[found.size()]);
+	}
+
+	/**
+	 * The number of distinct symbol names
+	 */
+	public int size(){
+		return symbols.size();
+	}
+
+	/**
+	 * Get a hash of all the symbols and where they're defined.
+	 * It only changes when a symbol is added, removed or moved, so the doc cache can
+	 * tell if the pages that were given the index have to be rendered again.
+	 */
+	public String getVersion(){
+		String current = version;
+		if( current != null ){
+			return current;
+		}
+
+		String[] names = symbols.keySet().toArray(new String[0]);
+		Arrays.sort(names);
+		StringBuilder all = new StringBuilder();
+		Symbol[] defs;
+		for(int i = 0; i < names.length; i++){
+			defs = symbols.get(names[i]);
+			if( defs == null ){
+				continue;
+			}
+			all.append(names[i]);
+			for(int n = 0; n < defs.length; n++){
+				all.append(' ').append(defs[n].script.path).append(':').append(defs[n].lineno)
+					.append(':').append(defs[n].type).append(defs[n].implicit ? ":i" : "");
+			}
+			all.append('\n');
+		}
+
+		current = ScriptFile.hash(all.toString());
+		version = current;
+		return current;
+	}
+
+	/**
+	 * Add an element, and the members of objects and constructors, to the list of symbols
+	 * @param script The file being indexed
+	 * @param elem The element
+	 * @param global If the element is defined in the global scope
+	 * @param found The list of symbols
+	 */
+	private void collect(ScriptFile script, Element elem, boolean global, List<Symbol> found){
+		if( elem.anonymous || elem.name == null ){
+			return;
+		}
+
+		// Below the global scope, only object members are reachable
+		if( !global && elem.type != Element.OBJ && elem.type != Element.PROP && elem.type != Element.METHOD ){
+			return;
+		}
+
+		// Implicit globals keep the scope they were assigned in, but they're global
+		String name = global ? elem.name : InspectFile.getObjectChain(elem);
+		found.add( new Symbol(name, script, elem) );
+
+		if( elem.type == Element.OBJ || elem.constructor ){
+			Element[] children = elem.getChildren();
+			for(int i = 0; i < children.length; i++){
+				collect(script, children[i], false, found);
+			}
+		}
+	}
+
+	/**
+	 * Add a symbol definition, in order of path and line
+	 */
+	private void put(Symbol symbol){
+		Symbol[] current, updated = null;
+		do {
+			current = symbols.get(symbol.name);
+			if( current == null ){
+				if( symbols.putIfAbsent(symbol.name, new Symbol[]{ symbol }) == null ){
+					return;
+				}
+				continue;
+			}
+
+			int pos = current.length;
+			while( pos > 0 && compare(symbol, current[pos - 1]) < 0 ){
+				pos--;
+			}
+			updated = new Symbol[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, pos);
+			updated[pos] = symbol;
+			System.arraycopy(current, pos, updated, pos + 1, current.length - pos);
+		} while( current == null || !symbols.replace(symbol.name, current, updated) );
+	}
+
+	/**
+	 * Compare two definitions by path and line
+	 */
+	private static int compare(Symbol a, Symbol b){
+		int order = a.script.path.compareTo(b.script.path);
+		return (order != 0) ? order : a.lineno - b.lineno;
+	}
+}
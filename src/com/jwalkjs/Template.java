@@ -1,7 +1,15 @@
 package com.jwalkjs;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mozilla.javascript.*;
 
@@ -14,6 +22,40 @@ public class Template {
 	private Context cx;
 	private ScriptableObject scope;
 	private boolean debug = false;
+	private DocCache cache = null;
+	private SymbolIndex symbols = null;
+	private DocProfile profile = null;
+
+	/**
+	 * The standard objects and helper functions, shared by every template this instance renders.
+	 * It's sealed, so templates can't change it, and each template runs in its own thin scope on top of it.
+	 */
+	private ScriptableObject sharedScope = null;
+
+	/**
+	 * A scope for each rendering thread, between the shared scope and the template scopes.
+	 * It holds the thread's own cache of Java class reflection data, which Rhino doesn't synchronize.
+	 */
+	private ThreadLocal<ScriptableObject> threadScopes = new ThreadLocal<ScriptableObject>();
+
+	// Parallel rendering
+	private int renderThreads = 1;
+	private ExecutorService renderPool = null;
+	private ArrayList<Future<?>> rendering = new ArrayList<Future<?>>();
+
+	/**
+	 * Compiled templates and scripts, keyed by their canonical path (and tags, for templates).
+	 */
+	private static Hashtable<String,CompiledScript> compiled = new Hashtable<String,CompiledScript>();
+
+	/**
+	 * Numbers the compiled templates, so each one has its own literal table variable (see LiteralScript)
+	 */
+	private static AtomicInteger compileCount = new AtomicInteger();
+
+	// Output
+	private Charset outputCharset = ScriptFile.DEFAULT_CHARSET;
+	private ThreadLocal<TemplateWriter> writers = new ThreadLocal<TemplateWriter>();
 
 	/**
 	 * The characters that start the executable code in the template file
@@ -50,6 +92,50 @@ public class Template {
 		cx = (new ContextFactory()).enterContext();
 	}
 
+	/**
+	 * Skip rendering pages whose inputs haven't changed since they were rendered last time.
+	 * @param cache The cache with the page fingerprints or NULL to always render every page
+	 */
+	public void setCache(DocCache cache){
+		this.cache = cache;
+	}
+
+	/**
+	 * Make the project's symbol index available to the dispatch script as 'symbols'
+	 * @param symbols The symbol index of all the parsed files
+	 */
+	public void setSymbols(SymbolIndex symbols){
+		this.symbols = symbols;
+	}
+
+	/**
+	 * Time each rendered page, added up by template name.  Pages the cache skips aren't counted.
+	 * @param profile The profile of the run or NULL
+	 */
+	public void setProfile(DocProfile profile){
+		this.profile = profile;
+	}
+
+	/**
+	 * Set the charset the rendered templates are written with
+	 * @param charset The output charset, UTF-8 by default
+	 */
+	public void setOutputCharset(Charset charset){
+		this.outputCharset = charset;
+	}
+
+	/**
+	 * Render the templates requested by the dispatch script on several threads.
+	 * Each template() call is queued and the dispatch script continues right away, so the variables
+	 * passed to the template should not be changed afterwards. While rendering this way, templates
+	 * and the dispatch script have read-only access to the ScriptFile, Element and ElementDoc objects
+	 * (see ReadOnlyWrapFactory).
+	 * @param threads The number of rendering threads, 1 renders each template when it's requested.
+	 */
+	public void setRenderThreads(int threads){
+		this.renderThreads = Math.max(1, threads);
+	}
+
 	/**
 	 * Close the template and all the scripting resources opened
 	 */
@@ -84,18 +170,62 @@ public class Template {
 
 		// Setup environment
 		scope = cx.initStandardObjects();
-		scope.associateValue("output_writer", System.out);
 		scope.associateValue("template", this);
 		scope.associateValue("doc_root", tmplRoot.getAbsolutePath());
 		scope.associateValue("doc_out", out.getCanonicalFile()); // need full path for validation
 		JSHelpers.load(scope, new String[]{ "template" });
+		if( symbols != null ){
+			ScriptableObject.putProperty(scope, "symbols", Context.javaToJS(symbols, scope));
+		}
+
+		// Start the rendering threads.  The dispatch script runs while they render,
+		// so it gets the same read-only model, which is also what it passes to the templates.
+		WrapFactory wrapFactory = cx.getWrapFactory();
+		if( renderThreads > 1 ){
+			getSharedScope(cx);
+			renderPool = Executors.newFixedThreadPool(renderThreads, new RenderThreadFactory());
+			cx.setWrapFactory(new ReadOnlyWrapFactory());
+		}
 
-		// Run dispatch script
-		cx.evaluateReader(scope, new FileReader(dispatch), dispatch.getAbsolutePath(), 1, null);
+		try {
+
+			// Run dispatch script
+			compile(dispatch, false).exec(cx, scope);
+
+			Scriptable tmplObj = (Scriptable) scope.get("Templates", scope);
+			Function tmplFunc = (Function) ScriptableObject.getProperty(tmplObj, "createTemplates");
+			tmplFunc.call(cx, scope, tmplObj, new Object[]{ files });
+
+			// Wait for all the queued templates
+			finishRendering();
+		} finally {
+			if( renderPool != null ){
+				renderPool.shutdownNow();
+				renderPool = null;
+				cx.setWrapFactory(wrapFactory);
+			}
+			rendering.clear();
+		}
+	}
 
-		Scriptable tmplObj = (Scriptable) scope.get("Templates", scope);
-		Function tmplFunc = (Function) ScriptableObject.getProperty(tmplObj, "createTemplates");
-		tmplFunc.call(cx, scope, tmplObj, new Object[]{ files });
+	/**
+	 * Wait for all the queued templates to render
+	 * @throws Exception The error from the first template that failed
+	 */
+	private void finishRendering() throws Exception {
+		for( int i = 0; i < rendering.size(); i++ ){
+			try {
+				rendering.get(i).get();
+			} catch( ExecutionException ex ){
+				Throwable cause = ex.getCause();
+				if( cause instanceof Exception ){
+					throw (Exception)cause;
+				} else if( cause instanceof Error ){
+					throw (Error)cause;
+				}
+				throw ex;
+			}
+		}
 	}
 
 	/**
@@ -108,10 +238,7 @@ public class Template {
 	public void parse(String template, String out, Map<String, Object> globals)
 		throws IOException {
 
-		File tmplFile = new File(tmplRoot, template);
-		BufferedOutputStream fileOut = new BufferedOutputStream( new FileOutputStream( out ) );
-		parse( tmplFile, fileOut, globals );
-		fileOut.close();
+		render( template, new File(tmplRoot, template), new File(out), globals );
 	}
 
 	/**
@@ -124,9 +251,7 @@ public class Template {
 	public void parse(File template, File out, Map<String, Object> globals)
 		throws IOException {
 
-		BufferedOutputStream fileOut = new BufferedOutputStream( new FileOutputStream( out ) );
-		parse( template, fileOut, globals );
-		fileOut.close();
+		render( template.getPath(), template, out, globals );
 	}
 
 	/**
@@ -148,13 +273,59 @@ public class Template {
 			globalMap.put(key, ScriptableObject.getProperty(globals, key));
 		}
 
-		// Setup template and output
-		File tmplFile = new File(tmplRoot, template);
-		BufferedOutputStream fileOut = new BufferedOutputStream( new FileOutputStream( out ) );
+		// Parse now or queue it for the rendering threads
+		final String name = template;
+		final File tmplFile = new File(tmplRoot, template);
+		final File outFile = new File(out);
+		final Map<String, Object> vars = globalMap;
+		if( renderPool != null ){
+			rendering.add( renderPool.submit(new Callable<Object>(){
+				public Object call() throws IOException {
+					render( name, tmplFile, outFile, vars );
+					return null;
+				}
+			}) );
+		}
+		else {
+			render( name, tmplFile, outFile, vars );
+		}
+	}
+
+	/**
+	 * Parse a template file into an output file, unless the cache shows
+	 * the file has already been rendered from the same inputs.
+	 * @param name The template name, as it was passed in
+	 * @param template The template file
+	 * @param out The file to save the output to.
+	 * @param globals A Map of global properties you want available to the template
+	 */
+	private void render(String name, File template, File out, Map<String, Object> globals)
+		throws IOException {
+
+		String fingerprint = null;
+		if( cache != null ){
+			fingerprint = DocCache.fingerprint(name, globals);
+			if( cache.isPageCurrent(out, fingerprint) ){
+				return;
+			}
+			cache.removePage(out);
+		}
+
+		// The template writer does the buffering
+		DocProfile.Sample start = (profile != null) ? profile.start() : null;
+		FileOutputStream fileOut = new FileOutputStream( out );
+		try {
+			parse( template, fileOut, globals );
+		} finally {
+			fileOut.close();
+		}
+		if( profile != null ){
+			profile.record(DocProfile.TEMPLATE, name, out.getPath(), start);
+		}
 
-		// Parse
-		parse( tmplFile, fileOut, globalMap );
-		fileOut.close();
+		if( cache != null ){
+			cache.pageRendered(out, fingerprint);
+		}
 	}
 
 	/**
@@ -176,25 +347,14 @@ public class Template {
 			throw new FileNotFoundException("The file '"+ template.getPath() +"' does not exist.");
 		}
 
-		// Read template file
-		StringBuilder contents = new StringBuilder();
-		BufferedReader input =  new BufferedReader( new FileReader(template) );
-		try{
-			String line;
-			while (( line = input.readLine()) != null){
-	          contents.append(line);
-	          contents.append(System.getProperty("line.separator"));
-	        }
-		} finally{
-			input.close();
-		}
-
 		// JS Environment
-		scope = cx.initStandardObjects();
-		scope.associateValue("template", this);
-		scope.associateValue("doc_root", tmplRoot.getAbsolutePath());
-		scope.associateValue("output_writer", out);
-		JSHelpers.load(scope);
+		Context cx = Context.getCurrentContext();
+		ScriptableObject renderScope = createRenderScope(cx);
+		renderScope.associateValue("template", this);
+		renderScope.associateValue("doc_root", tmplRoot.getAbsolutePath());
+		TemplateWriter writer = getWriter();
+		writer.open(out);
+		renderScope.associateValue("output_writer", writer);
 
 		// Add globals
 		if( globals != null && globals.size() > 0){
@@ -203,55 +363,186 @@ public class Template {
 			Object value;
 			for( int i = 0; i < keys.length; i++ ){
 				key = (String)keys[i];
-				value = Context.javaToJS( globals.get(key), scope );
+				value = Context.javaToJS( globals.get(key), renderScope );
 
-				ScriptableObject.defineProperty(scope, key, value, 0);
+				ScriptableObject.defineProperty(renderScope, key, value, 0);
 			}
 		}
 
-		// Convert and execute
-		String tmplJS = convertTemplate(contents.toString());
-		if( debug ){
-			System.out.println(tmplJS);
+		// Execute
+		try {
+			compile(template, true).exec(cx, renderScope);
+		} finally {
+			writer.finish();
 		}
-		cx.evaluateString(scope, tmplJS, template.getPath(), 1, null);
 
-		out.flush();
 		out.close();
-		scope = null;
+	}
+
+	/**
+	 * Get this thread's template writer.
+	 * A new one is created if the thread's writer is busy or uses a different charset.
+	 */
+	private TemplateWriter getWriter(){
+		TemplateWriter writer = writers.get();
+		if( writer != null && !writer.isOpen() && writer.getCharset().equals(outputCharset) ){
+			return writer;
+		}
+
+		writer = new TemplateWriter(outputCharset);
+		if( writers.get() == null || !writers.get().isOpen() ){
+			writers.set(writer);
+		}
+		return writer;
+	}
+
+	/**
+	 * Create the scope a single template is executed in.
+	 * It inherits the standard objects and helper functions from the shared scope.
+	 * @param cx The current thread's context
+	 */
+	private ScriptableObject createRenderScope(Context cx){
+
+		// Scope for this thread
+		ScriptableObject threadScope = threadScopes.get();
+		if( threadScope == null ){
+			threadScope = createChildScope(cx, getSharedScope(cx));
+			new ClassCache().associate(threadScope);
+			threadScopes.set(threadScope);
+		}
+
+		return createChildScope(cx, threadScope);
+	}
+
+	/**
+	 * Get the sealed scope with the standard objects and helper functions
+	 * @param cx The current thread's context
+	 */
+	private synchronized ScriptableObject getSharedScope(Context cx){
+		if( sharedScope == null ){
+			sharedScope = cx.initStandardObjects(null, true);
+			JSHelpers.load(sharedScope);
+
+			// Load the lazily loaded constructors now, they can't be added once the scope is sealed
+			cx.evaluateString(sharedScope, "RegExp; getClass; java; Packages; JavaAdapter;", "shared", 1, null);
+			sharedScope.sealObject();
+		}
+		return sharedScope;
+	}
+
+	/**
+	 * Create an empty top level scope which inherits everything from another scope
+	 * @param cx The current thread's context
+	 * @param prototype The scope to inherit from
+	 */
+	private static ScriptableObject createChildScope(Context cx, ScriptableObject prototype){
+		ScriptableObject child = (ScriptableObject)cx.newObject(prototype);
+		child.setPrototype(prototype);
+		child.setParentScope(null);
+		return child;
+	}
+
+	/**
+	 * Get the compiled script for a template or JavaScript file.
+	 * Each file is only read and compiled again when it has been modified.
+	 * @param file The template or JavaScript file
+	 * @param isTemplate If the file is a template that needs to be converted to JavaScript first
+	 */
+	protected Script compile(File file, boolean isTemplate) throws IOException {
+		String key = file.getCanonicalPath();
+		if( isTemplate ){
+			key += "\n"+ startTag +"\n"+ endTag;
+		}
+
+		// Use the compiled script, if the file hasn't changed since
+		long modified = file.lastModified();
+		long length = file.length();
+		CompiledScript cached = compiled.get(key);
+		if( cached != null && cached.modified == modified && cached.length == length ){
+			return cached.script;
+		}
+
+		// Convert and compile
+		String js = readFile(file);
+		String table = null;
+		ArrayList<String> text = null;
+		if( isTemplate ){
+			table = "__literals"+ compileCount.incrementAndGet();
+			text = new ArrayList<String>();
+			js = convertTemplate(js, table, text);
+		}
+		if( debug ){
+			System.out.println(js);
+		}
+
+		Script script = Context.getCurrentContext().compileString(js, file.getPath(), 1, null);
+		if( isTemplate ){
+			script = new LiteralScript(script, table, text.toArray(new String[text.size()]));
+		}
+		compiled.put(key, new CompiledScript(script, modified, length));
+		return script;
+	}
+
+	/**
+	 * Read the contents of a template or script file.  Template files are UTF-8, like the output.
+	 * The line breaks are kept as they are in the file, so the output has the same ones,
+	 * and one is added to the end if the file doesn't end with one.
+	 * @param file
+	 */
+	protected static String readFile(File file) throws IOException {
+		if( file.length() == 0 ){
+			return "";
+		}
+		return ScriptFile.readSource(file, ScriptFile.DEFAULT_CHARSET);
 	}
 
 	/**
 	 * Convert the template file into JavaScript code that can be executed by Rhino
 	 */
 	public String convertTemplate(String template){
-		StringBuilder js = new StringBuilder();
+		return convertTemplate(template, null, null);
+	}
 
-		int tmplLen, endLen, cursor;
+	/**
+	 * Convert the template file into JavaScript code that can be executed by Rhino
+	 * @param template The template source
+	 * @param table The name of the literal table variable passed to 'printLiteral'
+	 * @param text The list the literal text chunks are collected in,
+	 * 				or NULL to print them from quoted strings instead.
+	 */
+	protected String convertTemplate(String template, String table, List<String> text){
+		StringBuilder js = new StringBuilder(template.length() + 64);
+
+		int tmplLen = template.length();
+		int startLen = startTag.length();
+		int endLen = endTag.length();
+		int pos = 0, cursor;
 		boolean inPrint, inComment, escaped;
-		char quote = 0, curr;
+		char quote, curr;
 
-		// With each pass the process part of the template is removed until
-		// the entire template is consumed
-		while(template.length() > 0){
-			tmplLen = template.length();
+		// Scan the template once, from one code block to the next
+		while( pos < tmplLen ){
 			inPrint = false;
 			inComment = false;
 
 			// Find the next start tag
-			cursor = template.indexOf(startTag);
-			if( cursor > -1 ){
-
-				// Print the content stuff
-				if( cursor > 0 ){
-					js.append( "print(\"" );
-					js.append( escape( template.substring(0, cursor) ) );
-					js.append( "\");" );
-				}
+			cursor = template.indexOf(startTag, pos);
 
-				cursor += startTag.length();
+			// EOF -- place the rest in a print
+			if( cursor < 0 ){
+				appendLiteral( js, template, pos, tmplLen, table, text );
+				break;
+			}
+
+			// Print the content stuff
+			if( cursor > pos ){
+				appendLiteral( js, template, pos, cursor, table, text );
+			}
 
-				// Special tag shorthands
+			cursor += startLen;
+
+			// Special tag shorthands
+			if( cursor < tmplLen ){
 				switch( template.charAt(cursor) ){
 				case '=': // A printable statement: <%= 'foo' %>
 					js.append( "print(" );
@@ -263,92 +554,190 @@ public class Template {
 					inComment = true;
 					cursor++;
 					break;
-
-				default:
-					// No extensions present
-					inPrint = false;
-					inComment = false;
 				}
+			}
 
-				// Find the end of the executable code, but ignore tags inside quotes
-				escaped = false;
-				quote = 0;
-				endLen = endTag.length();
-				for(; cursor < tmplLen; cursor++ ){
-					curr = template.charAt(cursor);
-
-					// Quotes
-					if( curr == '\'' || curr == '"'){
-
-						// Start quote
-						if( quote == 0 ){
-							quote = curr;
-						}
-						// End quote
-						else if( !escaped && quote == curr ){
-							quote = 0;
-						}
-					}
+			// Find the end of the executable code, but ignore tags inside quotes
+			escaped = false;
+			quote = 0;
+			pos = tmplLen;
+			for(; cursor < tmplLen; cursor++ ){
+				curr = template.charAt(cursor);
 
-					// Escape backslashes
-					escaped = ( curr == '\\' && !escaped);
+				// Quotes
+				if( curr == '\'' || curr == '"'){
 
+					// Start quote
+					if( quote == 0 ){
+						quote = curr;
+					}
+					// End quote
+					else if( !escaped && quote == curr ){
+						quote = 0;
+					}
+				}
 
-					// Peek and the next few characters for the end tag
-					if ( quote == 0
-							&& (cursor + endLen - 1) < tmplLen
-							&& template.substring(cursor, cursor + endLen).equals( endTag ) ){
+				// Escape backslashes
+				escaped = ( curr == '\\' && !escaped);
 
-						// Finish the print
-						if( inPrint ){
-							js.append( ")" );
-						}
-						js.append( ";" );
+				// The end tag
+				if ( quote == 0 && template.startsWith(endTag, cursor) ){
 
-						// Cut the template down
-						cursor += endLen;
-						template = template.substring(cursor);
-						cursor = 0;
-						break;
+					// Finish the print
+					if( inPrint ){
+						js.append( ")" );
 					}
+					js.append( ";" );
 
-					// Append character
-					else if( !inComment || curr == '\n'){
-						js.append(curr);
-					}
+					pos = cursor + endLen;
+					break;
 				}
 
-				// EOF
-				if( cursor >= tmplLen){
-					break;
+				// Append character
+				else if( !inComment || curr == '\n'){
+					js.append(curr);
 				}
+			}
+		}
 
+		return js.toString();
+	}
+
+	/**
+	 * Add the code that prints a literal text chunk
+	 * @param js The code being generated
+	 * @param template The template source
+	 * @param start The start of the chunk in the template
+	 * @param end The end of the chunk in the template
+	 * @param table The name of the literal table variable
+	 * @param text The literal table or NULL to print a quoted string
+	 */
+	private void appendLiteral(StringBuilder js, String template, int start, int end, String table, List<String> text){
+		if( text == null ){
+			js.append( "print(\"" );
+			escape( js, template, start, end );
+			js.append( "\");" );
+			return;
+		}
+
+		js.append( "printLiteral(" ).append( table ).append( "," ).append( text.size() ).append( ");" );
+		text.add( template.substring(start, end) );
+
+		// Keep the line numbers of the script and template in step
+		for( int i = start; i < end; i++ ){
+			if( template.charAt(i) == '\n' ){
+				js.append('\n');
 			}
+		}
+	}
 
-			// EOF -- place the rest in a print
-			else if( tmplLen > 0 ){
-				js.append( "print(\"" );
-				js.append( escape( template.substring(0) ) );
-				js.append( "\");" );
+	/**
+	 * Escape the characters of a chunk of the template, which will be quoted.
+	 * Each line break ends the string and continues it on the next line,
+	 * so the script and template line numbers stay in step.
+	 * @param js The code being generated
+	 * @param template The template source
+	 * @param start The start of the chunk in the template
+	 * @param end The end of the chunk in the template
+	 */
+	private void escape(StringBuilder js, String template, int start, int end){
+		char c;
+		for( int i = start; i < end; i++ ){
+			c = template.charAt(i);
+			switch( c ){
+			case '\\':
+				js.append( "\\\\" );
+				break;
+			case '"':
+				js.append( "\\\"" );
 				break;
+			case '\n':
+				js.append( "\"+\n\"\\n" );
+				break;
+			case '\r':
+				js.append( "\\r" );
+				break;
+			// Line and paragraph separators end JS strings too
+			case 0x2028:
+				js.append( "\\u2028" );
+				break;
+			case 0x2029:
+				js.append( "\\u2029" );
+				break;
+			default:
+				js.append(c);
 			}
-
 		}
+	}
 
-
-		return js.toString();
+	/**
+	 * Creates the rendering threads.  Each thread has its own context for as long as it runs.
+	 */
+	private static class RenderThreadFactory implements ThreadFactory {
+		private ContextFactory contextFactory = new ContextFactory();
+		private WrapFactory wrapFactory = new ReadOnlyWrapFactory();
+		private int count = 0;
+
+		public Thread newThread(final Runnable worker){
+			Thread thread = new Thread(new Runnable(){
+				public void run(){
+					Context cx = contextFactory.enterContext();
+					cx.setWrapFactory(wrapFactory);
+					try {
+						worker.run();
+					} finally {
+						Context.exit();
+					}
+				}
+			}, "jwalk-render-"+ (count++));
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 
 	/**
-	 * Escape characters which will be quoted
+	 * A compiled template and its literal text chunks.
+	 *
+	 * Running it first sets the chunks as a variable of the scope it runs in, with a name no
+	 * other compiled template uses, and the template's 'printLiteral' calls read that variable.
+	 * So a template that's compiled again while the old version still renders somewhere doesn't
+	 * change the old one's text, and functions an included template defines keep their own chunks.
 	 */
-	private String escape(String code){
+	private static class LiteralScript implements Script {
+		private Script script;
+		private String table;
+		private String[] text;
+
+		LiteralScript(Script script, String table, String[] text){
+			this.script = script;
+			this.table = table;
+			this.text = text;
+		}
 
-		code = code.replaceAll("\\\\", "\\\\"); // Convert '\' to '\\'
-		code = code.replaceAll("\"", "\\\\\""); // Convert '"' to '\"'
-		code = code.replaceAll("\n", "\"+\n\"\\\\n"); // Convert '\n' to '"+\n"'
+		public Object exec(Context cx, Scriptable scope){
+			Object literals = Context.javaToJS(text, scope);
+			if( scope instanceof ScriptableObject ){
+				((ScriptableObject)scope).defineProperty(table, literals, ScriptableObject.DONTENUM);
+			} else {
+				ScriptableObject.putProperty(scope, table, literals);
+			}
+			return script.exec(cx, scope);
+		}
+	}
 
-		return code;
+	/**
+	 * A compiled script and the state of the file it was compiled from
+	 */
+	private static class CompiledScript {
+		Script script;
+		long modified;
+		long length;
+
+		CompiledScript(Script script, long modified, long length){
+			this.script = script;
+			this.modified = modified;
+			this.length = length;
+		}
 	}
 
 }
@@ -0,0 +1,172 @@
+package com.jwalkjs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Buffers the output of a template and encodes it to an output stream with an explicit charset.
+ *
+ * The same writer can be reused for one template after another: open() points it at the
+ * next output stream and finish() writes everything that's left without closing the stream.
+ * Nothing is written to the stream until the buffer fills up or the template is finished.
+ */
+public class TemplateWriter extends Writer {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private Charset charset;
+	private CharsetEncoder encoder;
+	private char[] buffer = new char[BUFFER_SIZE];
+	private int count = 0;
+	private ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 2);
+	private OutputStream out = null;
+
+	/**
+	 * Create a writer for a charset
+	 * @param charset The charset the output is encoded with
+	 */
+	public TemplateWriter(Charset charset){
+		this.charset = charset;
+		encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * Get the charset the output is encoded with
+	 */
+	public Charset getCharset(){
+		return charset;
+	}
+
+	/**
+	 * Is the writer currently writing a template
+	 */
+	public boolean isOpen(){
+		return ( out != null );
+	}
+
+	/**
+	 * Start writing to an output stream
+	 * @param out The stream the encoded output is written to
+	 */
+	public void open(OutputStream out){
+		this.out = out;
+		count = 0;
+		encoder.reset();
+	}
+
+	/**
+	 * Write all the buffered output to the stream, without closing it,
+	 * and release the stream so the writer can be used again.
+	 */
+	public void finish() throws IOException {
+		if( out == null ){
+			return;
+		}
+		try {
+			encode(true);
+			out.flush();
+		} finally {
+			out = null;
+			count = 0;
+		}
+	}
+
+	public void write(int c) throws IOException {
+		if( count == buffer.length ){
+			encode(false);
+		}
+		buffer[count++] = (char)c;
+	}
+
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		while( len > 0 ){
+			if( count == buffer.length ){
+				encode(false);
+			}
+			int size = Math.min(len, buffer.length - count);
+			System.arraycopy(cbuf, off, buffer, count, size);
+			count += size;
+			off += size;
+			len -= size;
+		}
+	}
+
+	public void write(String str, int off, int len) throws IOException {
+		while( len > 0 ){
+			if( count == buffer.length ){
+				encode(false);
+			}
+			int size = Math.min(len, buffer.length - count);
+			str.getChars(off, off + size, buffer, count);
+			count += size;
+			off += size;
+			len -= size;
+		}
+	}
+
+	/**
+	 * Write the buffered output to the stream and flush it
+	 */
+	public void flush() throws IOException {
+		if( out != null ){
+			encode(false);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Same as finish(), the output stream is left open for its owner to close.
+	 */
+	public void close() throws IOException {
+		finish();
+	}
+
+	/**
+	 * Encode the buffered characters to the output stream
+	 * @param endOfInput If this is the end of the template's output
+	 */
+	private void encode(boolean endOfInput) throws IOException {
+		if( out == null ){
+			throw new IOException("The template writer is not open.");
+		}
+
+		CharBuffer chars = CharBuffer.wrap(buffer, 0, count);
+		CoderResult result;
+		do {
+			result = encoder.encode(chars, bytes, endOfInput);
+			writeBytes();
+		} while( result.isOverflow() );
+
+		if( endOfInput ){
+			while( encoder.flush(bytes).isOverflow() ){
+				writeBytes();
+			}
+			writeBytes();
+		}
+
+		// Keep a split surrogate pair for the next pass
+		count = chars.remaining();
+		if( count > 0 ){
+			chars.get(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * Write the encoded bytes to the output stream
+	 */
+	private void writeBytes() throws IOException {
+		if( bytes.position() > 0 ){
+			out.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+		}
+	}
+}
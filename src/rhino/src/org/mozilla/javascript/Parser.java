@@ -86,6 +86,7 @@ public class Parser
 
     private Decompiler decompiler;
     private String encodedSource;
+    private boolean recordComments; // <jgillick>
 
 // The following are per function variables and should be saved/restored
 // during function parsing.
@@ -109,6 +110,18 @@ public class Parser
         return ts.getTokenStart();
     }
 
+    // <jgillick>
+    // Keep where the comments are while parsing, see getCommentRanges()
+    public void setRecordComments(boolean record) {
+        recordComments = record;
+    }
+
+    // <jgillick>
+    // The comments found by the last parse, as returned by TokenStream.getCommentRanges()
+    public int[] getCommentRanges() {
+        return ts.getCommentRanges();
+    }
+
     // Exception to unwind
     private static class ParserException extends RuntimeException
     {
@@ -367,6 +380,9 @@ public class Parser
     private ScriptOrFnNode parse()
         throws IOException
     {
+        if (recordComments) {
+            ts.recordComments(); // <jgillick>
+        }
         this.decompiler = createDecompiler(compilerEnv);
         this.nf = new IRFactory(this);
         currentScriptOrFn = nf.createScript();
@@ -304,6 +304,25 @@ public class TokenStream
     }
 
     public final int getToken() throws IOException
+    {
+        int tt = readToken();
+
+        // <jgillick>
+        if (commentRanges != null && sourceCommentStart != -1) {
+            if (commentRangesTop + 4 > commentRanges.length) {
+                int[] grown = new int[commentRanges.length * 2];
+                System.arraycopy(commentRanges, 0, grown, 0, commentRangesTop);
+                commentRanges = grown;
+            }
+            commentRanges[commentRangesTop++] = sourceCommentStart;
+            commentRanges[commentRangesTop++] = sourceTokenStart;
+            commentRanges[commentRangesTop++] = sourceCursor;
+            commentRanges[commentRangesTop++] = sourceCommentLineno;
+        }
+        return tt;
+    }
+
+    private int readToken() throws IOException
     {
         int c;
         sourceCommentStart = -1;
@@ -1330,6 +1349,24 @@ public class TokenStream
     public final int getCommentLineno(){
     	return sourceCommentLineno;
     }
+    // <jgillick>
+    // Keep the comments of every token read from now on, see getCommentRanges()
+    public final void recordComments(){
+    	commentRanges = new int[64];
+    	commentRangesTop = 0;
+    }
+    // <jgillick>
+    // The comments before each token that had any, four ints for each token:
+    // comment start, token start, cursor after the token and comment line.
+    // These are the same as getCommentStart(), getTokenStart(), getCursor() and
+    // getCommentLineno() just after the token was read.
+    public final int[] getCommentRanges(){
+    	int[] ranges = new int[commentRangesTop];
+    	if (commentRanges != null) {
+    		System.arraycopy(commentRanges, 0, ranges, 0, commentRangesTop);
+    	}
+    	return ranges;
+    }
 
     public final String getLine()
     {
@@ -1436,6 +1473,8 @@ public class TokenStream
     private int sourceTokenStart; // <jgillick>
     private int sourceCommentStart; // <jgillick>
     private int sourceCommentLineno; // <jgillick>
+    private int[] commentRanges; // <jgillick>
+    private int commentRangesTop; // <jgillick>
 
     // for xml tokenizer
     private boolean xmlIsAttribute;